@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package org.brann.persist;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Persistent for opaque byte values, registered under the class ByteBuffer.  The byte[] 
+ * handed in is held as-is - it is its own frozen form - so it is never copied or serialized:
+ * it is logged raw, and checkpointed as a plain array.
+ * Clients must not modify an array once they have set it; TransactionHandle.getBytes() 
+ * hands the value out as a read-only view for the same reason.
+ */
+class BytesPersistent extends Persistent {
+
+    private static final long serialVersionUID = 7310622468046813509L; // Version ID to allow de-serialization after change.
+
+    /** recreate a Persistent from a Transaction LogEntry.  Used during start-up to roll-forward the log.
+     */
+    BytesPersistent(PersistentLogEntry pdi) {
+        super(pdi);
+    }
+    
+    /** Build a new empty Persistent
+     */
+    BytesPersistent(String name, Class<?> type) {
+        super(name,type);
+    }
+    
+    protected Serializable obtainValue(Serializable val) throws PersistException {
+        return val;
+    }
+    
+    protected Serializable storeValue(Serializable val) throws PersistException {
+        return val;
+    }
+
+    /**
+     * Returns true if the argument class is held in a BytesPersistent.
+     */
+    static boolean isBytes(Class<?> pClass) {
+        return pClass == ByteBuffer.class;
+    }
+}
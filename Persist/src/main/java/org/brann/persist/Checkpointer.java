@@ -43,10 +43,19 @@ import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.EOFException;
 
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Collections;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import java.util.zip.ZipInputStream;
@@ -68,7 +77,8 @@ class Checkpointer implements Runnable {
         zos = null;
         ckpFileSeq = 0;
         this.log = log;
-        lock = new Object();
+        lock = new ReentrantLock();
+        flushReady = lock.newCondition();
     }
     
     void startCheckpointer() {
@@ -118,9 +128,14 @@ class Checkpointer implements Runnable {
     /**
      * Adds the changed object to the checkpoint collection. 
      */
-    synchronized void addChanged(PersistentLogEntry ple) {
+    void addChanged(PersistentLogEntry ple) {
         
-        currentFlush.add(ple);
+        lock.lock();
+        try {
+            currentFlush.add(ple);
+        } finally {
+            lock.unlock();
+        }
     }
     
     
@@ -129,9 +144,12 @@ class Checkpointer implements Runnable {
      */
     void shutDown() {
         
-        shutDown = true;
-        synchronized(lock) {
-            lock.notify();
+        lock.lock();
+        try {
+            shutDown = true;
+            flushReady.signal();
+        } finally {
+            lock.unlock();
         }
         try {
             myThread.join();
@@ -146,11 +164,13 @@ class Checkpointer implements Runnable {
      */
     void coldStart() {
         log.destroyFiles(CKP_ZIPNAME);
+        log.destroyFiles(COMPACT_TMPNAME);
         startCheckpointer();
     }
     
     void warmStart(PersistentLibrary lib) {
         
+        log.destroyFiles(COMPACT_TMPNAME); // an unfinished compaction - its inputs are intact
         replay(lib);
     }
     
@@ -165,45 +185,136 @@ class Checkpointer implements Runnable {
         for (int  x = 0;
              x < ckpFiles.length;
              ++x) {
-                 if (buildReadStream(ckpFiles[x])) {
+                 List<PersistentLogEntry> restored = new ArrayList<PersistentLogEntry>();
+                 if (!readCheckpointFile(ckpFiles[x], restored, false)) {
+                     System.err.println ("Checkpoint file " + ckpFiles[x] + " is damaged - restored the " + 
+                                         restored.size() + " changes before the damage, the rest are lost");
+                 }
+                 for (PersistentLogEntry ple : restored) {
+                     
                      try {
-                         while ((zis.getNextEntry()) != null) {
-                             ObjectInputStream ois = new ObjectInputStream(zis);
-                             @SuppressWarnings("unchecked")
-							List<LogEntry> restoredList = (List<LogEntry>)ois.readObject();
-                             zis.closeEntry();
-                             // NOTE!!  Even though we'return finished with ois here,
-                             // we CAN'T close it - that would close the whole stack of streams, starting with zis.
-                             if (restoredList != null) {
-                                 for (LogEntry pdi : restoredList) {
-                                           
-                                          try {
-                                            lib.addTo(Persistent.persistentFactory((PersistentLogEntry)pdi));
-                                          } catch (PersistException pe) {
-                                              System.err.println ("Problem restoring Persistent object: " + pe);
-                                          }
-                                 }
-                             }
-                         }
-                     } catch (EOFException eofe) {
-                         /* OK */
-                     } catch (IOException ioe) {
-                         System.err.println ("Problem getting object from checkpoint zipfile: " + ioe);
-                     } catch (ClassNotFoundException cnfe) {
-                         System.err.println ("Problem getting object from zipfile: " + cnfe);
-                     } catch (ClassCastException cce) {
-                         System.err.println ("Data problem in checkpoint file " + ckpFiles[x] + ": " + cce);
+                         lib.addTo(Persistent.persistentFactory(ple));
+                     } catch (PersistException pe) {
+                         System.err.println ("Problem restoring Persistent object: " + pe);
+                     }
+                     if (ple.isNull()) {
+                         // a deletion (tombstone) - drop any earlier version
+                         lib.processDeletions(Collections.singletonList(ple));
                      }
-                 } else {
-                     System.err.println ("Unable to restore checkpoint file ckp" + x);
                  }
         }
-        if (zis != null)
-            closeReadStream();
         
        return; 
     }
     
+    /**
+     * Appends every entry in the argument checkpoint file, in order, to the argument List.
+     * Returns false if the file could not be opened or could not be read to its end, leaving
+     * the entries read before the damage in the List.  Unless the file is known to be 
+     * complete, reading stops quietly at the end of a file that was still being written 
+     * when the engine stopped.
+     */
+    private boolean readCheckpointFile(File f, List<PersistentLogEntry> into, boolean complete) {
+        
+        if (!buildReadStream(f)) {
+            return false;
+        }
+        try {
+            while ((zis.getNextEntry()) != null) {
+                ObjectInputStream ois = new ObjectInputStream(zis);
+                @SuppressWarnings("unchecked")
+                List<LogEntry> restoredList = (List<LogEntry>)ois.readObject();
+                zis.closeEntry();
+                // NOTE!!  Even though we'return finished with ois here,
+                // we CAN'T close it - that would close the whole stack of streams, starting with zis.
+                if (restoredList != null) {
+                    for (LogEntry pdi : restoredList) {
+                        into.add((PersistentLogEntry)pdi);
+                    }
+                }
+            }
+        } catch (EOFException eofe) {
+            if (complete) {
+                System.err.println ("Checkpoint file " + f + " is truncated: " + eofe);
+                return false;
+            }
+        } catch (IOException ioe) {
+            System.err.println ("Problem getting object from checkpoint zipfile: " + ioe);
+            return false;
+        } catch (ClassNotFoundException cnfe) {
+            System.err.println ("Problem getting object from zipfile: " + cnfe);
+            return false;
+        } catch (ClassCastException cce) {
+            System.err.println ("Data problem in checkpoint file " + f + ": " + cce);
+            return false;
+        } finally {
+            closeReadStream();
+        }
+        return true;
+    }
+    
+    /**
+     * Merges all the closed checkpoint files - those before the file currently being written -
+     * into a single file holding the latest image of each key.  The merged file is written
+     * under a temporary name and synced, then renamed over the lowest-sequence input, and
+     * only then are the remaining inputs deleted.  If the engine stops part way through, the
+     * files left behind still replay to the same state: the merged file is older in sequence
+     * than the inputs that survive it, and replaying them again changes nothing.
+     * Deletions are kept as tombstones, since the Library image may still hold the key.
+     * If any input cannot be read in full, nothing is merged or deleted.
+     */
+    private void compact() {
+        
+        File[] ckpFiles = log.getFiles(CKP_ZIPNAME);
+        int closed = 0;
+        while (closed < ckpFiles.length &&
+               log.extractSequence(new File[] {ckpFiles[closed]}, CKP_ZIPNAME, true) < ckpFileSeq) {
+            ++closed;
+        }
+        int threshold = log.getConfig().getCheckpointCompactionThreshold();
+        if (threshold < 2 || closed < threshold) {
+            return;
+        }
+        
+        List<PersistentLogEntry> merged = new ArrayList<PersistentLogEntry>();
+        for (int x = 0; x < closed; ++x) {
+            if (!readCheckpointFile(ckpFiles[x], merged, true)) {
+                System.err.println ("Checkpoint compaction abandoned - inputs left as they are");
+                return;
+            }
+        }
+        merged = collapse(merged);
+        
+        File tmp = new File(log.getFileName(COMPACT_TMPNAME, ckpFileSeq));
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            ZipOutputStream cos = new ZipOutputStream(new FileOutputStream(raf.getFD()));
+            try {
+                cos.setLevel(java.util.zip.Deflater.BEST_SPEED);
+                cos.putNextEntry(new ZipEntry(Integer.toString(++numFlushes)));
+                ObjectOutputStream oos = new ObjectOutputStream(cos);
+                oos.writeObject(merged);
+                oos.flush();
+                cos.closeEntry();
+                cos.finish();
+                cos.flush();
+                raf.getFD().sync();
+            } finally {
+                cos.close();
+            }
+            Files.move(tmp.toPath(), ckpFiles[0].toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            System.err.println ("Unable to compact checkpoint files: " + ioe);
+            tmp.delete();
+            return;
+        }
+        for (int x = 1; x < closed; ++x) {
+            ckpFiles[x].delete();
+        }
+    }
+    
     /**
      * Build InputStreams used in reading a checkpoint file. 
      */
@@ -248,12 +359,16 @@ class Checkpointer implements Runnable {
         
         while (!shutDown) {
         
-            synchronized (lock) {
-                if (pendingFlushes.size() < 2) {
+            lock.lock();
+            try {
+                if (!shutDown &&
+                    pendingFlushes.size() < 2) {
                     try {
-                        lock.wait();
+                        flushReady.await();
                     } catch (InterruptedException ie) {}
                 }
+            } finally {
+                lock.unlock();
             }
 
             if (pendingFlushes.size() >= 2) {
@@ -264,15 +379,20 @@ class Checkpointer implements Runnable {
                     zos.putNextEntry(new ZipEntry(Integer.toString(++numFlushes)));
                     zos.flush();
                     ObjectOutputStream oos = new ObjectOutputStream(zos);
-                    oos.writeObject(pendingFlushes.get(0));
+                    List<PersistentLogEntry> flush = pendingFlushes.get(0);
+                    if (log.getConfig().isCompactCheckpoints()) {
+                        flush = collapse(flush);
+                    }
+                    oos.writeObject(flush);
                     oos.flush();
                     zos.closeEntry();
                     zos.flush();
   //                  zos.finish();
                     libFd.sync();
-                    if (ckpFile.length() > TransactionMgr.MAX_FILESIZE) {
+                    if (ckpFile.length() > log.getConfig().getCheckpointFileSize()) {
                         closeStreams();
                         buildStreams();
+                        compact();
                     }
                 } catch (IOException ioe) {
                     // unable to build the zip - dont zap the log
@@ -285,21 +405,41 @@ class Checkpointer implements Runnable {
         }
     }
     
+    /**
+     * Returns the argument changes reduced to the latest entry for each (class, name) key, in
+     * the order of those latest entries.  An entry with a null value is kept, as the tombstone
+     * that removes any version of the key restored from an earlier checkpoint.
+     */
+    static List<PersistentLogEntry> collapse(List<PersistentLogEntry> changes) {
+
+        Map<Object, PersistentLogEntry> latest = new LinkedHashMap<Object, PersistentLogEntry>();
+        for (PersistentLogEntry ple : changes) {
+            Object key = Persistent.makeKey(ple.getName(), ple.getPersistentClass());
+            latest.remove(key); // re-insert so that order follows the latest update
+            latest.put(key, ple);
+        }
+        return new ArrayList<PersistentLogEntry>(latest.values());
+    }
+
     /**
      * the transaction log rolled over, so add a new List of pendings for the new log
      */
     public void logAvailable() {
         
-       currentFlush = new LinkedList<PersistentLogEntry>();
-       pendingFlushes.add(currentFlush);
+        lock.lock();
+        try {
+            currentFlush = new LinkedList<PersistentLogEntry>();
+            pendingFlushes.add(currentFlush);
        
-       // at least one log is now available to be flushed...
-        synchronized (lock) {
-            lock.notify();
+            // at least one log is now available to be flushed...
+            flushReady.signal();
+        } finally {
+            lock.unlock();
         }
     }
     
     private static final String CKP_ZIPNAME = "ckp";
+    private static final String COMPACT_TMPNAME = "CompactCkp";
 
     private static int numFlushes;
 
@@ -316,7 +456,8 @@ class Checkpointer implements Runnable {
     private ZipInputStream zis;
     private TransactionLog log;
     private Thread myThread;
-    private Object lock;
-    private boolean shutDown;
+    private ReentrantLock lock; // guards currentFlush and the hand-off of full flushes to the thread
+    private Condition flushReady;
+    private volatile boolean shutDown;
 }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package org.brann.persist;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent whose content is frozen by the PersistCodec registered for its class, rather
+ * than by Java serialization.  Also holds the registry of codecs, keyed by persistent class.
+ */
+class CodecPersistent extends Persistent {
+
+    private static final long serialVersionUID = 4270938120157493208L; // Version ID to allow de-serialization after change.
+
+    /** recreate a Persistent from a Transaction LogEntry.  Used during start-up to roll-forward the log.
+     */
+    CodecPersistent(PersistentLogEntry pdi) {
+        super(pdi);
+    }
+    
+    /** Build a new empty Persistent
+     */
+    CodecPersistent(String name, Class<?> type) {
+        super(name,type);
+    }
+    
+    protected Serializable obtainValue(Serializable val) throws PersistException {
+        return ValueStore.getInstance().decode(codec(), (byte[])val);
+    }
+    
+    protected Serializable storeValue(Serializable val) throws PersistException {
+        return ValueStore.getInstance().encode(codec(), val);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistCodec<Serializable> codec() throws PersistException {
+        PersistCodec<Serializable> codec = (PersistCodec<Serializable>) codecs.get(getPersistentClass());
+        if (codec == null) {
+            throw new PersistException("No codec registered for " + getPersistentClass().getName());
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the codec registered for the argument class, or null if there is none.
+     */
+    static PersistCodec<?> getCodec(Class<?> pClass) {
+        return codecs.get(pClass);
+    }
+
+    /**
+     * Registers the argument codec for the argument class, or with a null codec removes
+     * the class's registration.
+     */
+    static <T extends Serializable> void setCodec(Class<T> pClass, PersistCodec<T> codec) {
+        if (codec == null) {
+            codecs.remove(pClass);
+        } else {
+            codecs.put(pClass, codec);
+        }
+    }
+
+    private static ConcurrentHashMap<Class<?>, PersistCodec<?>> codecs = new ConcurrentHashMap<Class<?>, PersistCodec<?>>();
+}
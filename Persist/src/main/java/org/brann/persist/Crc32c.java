@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum used to protect transaction log records.
+ * Uses the JDK's hardware-assisted java.util.zip.CRC32C when the runtime provides it
+ * (Java 9 and later); otherwise falls back to a table-driven implementation.
+ */
+final class Crc32c implements Checksum {
+
+    /**
+     * Returns a new CRC-32C Checksum.
+     */
+    static Checksum newChecksum() {
+        if (jdkCrc != null) {
+            try {
+                return (Checksum) jdkCrc.getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                // fall through to the portable implementation
+            }
+        }
+        return new Crc32c();
+    }
+
+    private Crc32c() {
+        crc = 0xFFFFFFFF;
+    }
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        for (int i = off; i < off + len; ++i) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    private int crc;
+
+    private static final int[] TABLE = new int[256];
+    private static Class<?> jdkCrc;
+
+    static {
+        for (int n = 0; n < 256; ++n) {
+            int c = n;
+            for (int k = 0; k < 8; ++k) {
+                c = ((c & 1) != 0) ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            }
+            TABLE[n] = c;
+        }
+        try {
+            jdkCrc = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException cnfe) {
+            jdkCrc = null;
+        }
+    }
+}
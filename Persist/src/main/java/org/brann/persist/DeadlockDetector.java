@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Searches the wait-for graph of blocked transactions for a cycle, and chooses the victim
+ * that breaks it.  The graph is read through TransactionMgr.blockersOf(); callers hold the
+ * TransactionMgr's block lock, but holders still release and pooled transactions are recycled
+ * while a search runs, so a cycle is only reported once every edge on it is seen to hold.
+ */
+class DeadlockDetector {
+
+    DeadlockDetector(TransactionMgr tm) {
+        this.tm = tm;
+    }
+
+    /**
+     * Returns the transactions on a cycle reachable from the argument transaction, in wait
+     * order (each waits for the next, and the last for the first), or null if there is none.
+     * A depth-first search of the whole graph: a cycle that does not pass through the start
+     * is found too.
+     */
+    List<Transaction> findCycle(Transaction start) {
+
+        List<Transaction> path = new ArrayList<Transaction>();
+        List<Iterator<Transaction>> pending = new ArrayList<Iterator<Transaction>>();
+        Map<Transaction, Integer> onPath = new HashMap<Transaction, Integer>();
+        Set<Transaction> finished = new HashSet<Transaction>();
+
+        path.add(start);
+        finished.add(start);
+        onPath.put(start, Integer.valueOf(0));
+        pending.add(tm.blockersOf(start).iterator());
+
+        while (!path.isEmpty()) {
+            int top = path.size() - 1;
+            Iterator<Transaction> next = pending.get(top);
+            if (next.hasNext()) {
+                Transaction t = next.next();
+                Integer at = onPath.get(t);
+                if (at != null) {
+                    List<Transaction> cycle = new ArrayList<Transaction>(path.subList(at.intValue(), path.size()));
+                    if (confirmed(cycle)) {
+                        return cycle;
+                    }
+                    continue;
+                }
+                if (finished.add(t)) {
+                    onPath.put(t, Integer.valueOf(path.size()));
+                    path.add(t);
+                    pending.add(tm.blockersOf(t).iterator());
+                }
+            } else {
+                onPath.remove(path.remove(top));
+                pending.remove(top);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if, read again now, each member of the argument cycle is alive and waits
+     * for the next (the last for the first), and no member was recycled as a new transaction
+     * while it was checked.  The members of a real deadlock are parked, so its edges hold;
+     * an edge read from a transaction that has since committed and been reused does not.
+     */
+    private boolean confirmed(List<Transaction> cycle) {
+
+        long[] ids = new long[cycle.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = cycle.get(i).getID();
+        }
+        for (int i = 0; i < ids.length; ++i) {
+            Transaction t = cycle.get(i);
+            if (!t.isAlive() ||
+                !tm.blockersOf(t).contains(cycle.get((i + 1) % ids.length))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < ids.length; ++i) {
+            if (cycle.get(i).getID() != ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the member of the argument cycle that is cheapest to roll back under the
+     * argument policy, or null if a member is already dead - the cycle is being broken.
+     */
+    Transaction chooseVictim(Collection<Transaction> cycle, VictimPolicy policy) {
+
+        long now = System.currentTimeMillis();
+        Transaction victim = null;
+        long victimCost = 0;
+        long victimAge = 0;
+
+        for (Transaction t : cycle) {
+            if (!t.isAlive()) {
+                return null;
+            }
+            long age = now - t.getDate().getTime();
+            long cost = policy.cost(t.numberPersistents(), t.getOperations(), age);
+            if (victim == null ||
+                cost < victimCost ||
+                (cost == victimCost && age < victimAge)) {
+                victim = t;
+                victimCost = cost;
+                victimAge = age;
+            }
+        }
+        return victim;
+    }
+
+    private final TransactionMgr tm;
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * The binary format of the transaction log.
+ * A log file starts with a header (MAGIC, then a VERSION byte) followed by records.
+ * Every record is framed by an int length and an int CRC-32C of the record body,
+ * followed by that many bytes of record body.  A zero length marks the end of the
+ * records in a preallocated file, and only zero bytes may follow it.  The first byte of
+ * the body is the record type:
+ * <ul>
+ * <li>CLASS: varint class id, UTF-8 class name.  Defines a class id for the rest of the file.</li>
+ * <li>UPDATE: varint transaction id, varint class id, varint name length, UTF-8 name,
+ *     value kind byte, then the value bytes (the remainder of the record).</li>
+ * <li>COMMIT: varint transaction id.</li>
+ * </ul>
+ * Values that are already held in frozen (byte[]) form by their Persistent are logged
+ * as-is; Long, Integer and Double values as fixed-width big-endian numbers (from version 3);
+ * other values are frozen by the ValueStore.  Names and classes can therefore be
+ * read without deserializing any value.
+ * A Reader also reads the logs of releases before this format - streams of serialized
+ * LogEntry objects - so that transactions committed before an upgrade are replayed.
+ * A Reader stops at the first record whose frame is incomplete or whose checksum does
+ * not match, and reports the file offset at which the damage starts.
+ */
+final class LogFormat {
+
+    private LogFormat() {
+    }
+
+    static final int MAGIC = 0x50535431; // "PST1"
+    static final int LEGACY_MAGIC = 0xACED0005; // serialization stream header - the format of earlier releases
+    static final byte VERSION = 3;
+    static final byte MIN_VERSION = 2; // oldest version that can still be read
+    static final int HEADER_SIZE = 5;
+    static final int FRAME_SIZE = 8; // length and checksum
+
+    static final byte CLASS = 1;
+    static final byte UPDATE = 2;
+    static final byte COMMIT = 3;
+
+    static final byte VALUE_NULL = 0;   // deletion
+    static final byte VALUE_FROZEN = 1; // raw bytes, the Persistent's own frozen form
+    static final byte VALUE_OBJECT = 2; // object frozen by the ValueStore
+    static final byte VALUE_LONG = 3;   // 8 bytes
+    static final byte VALUE_INT = 4;    // 4 bytes
+    static final byte VALUE_DOUBLE = 5; // 8 bytes, the IEEE 754 bits
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the file header to the argument segment.
+     */
+    static void writeHeader(LogSegment seg) throws IOException {
+        RecordBuffer rb = new RecordBuffer(8);
+        rb.putInt(MAGIC);
+        rb.put(VERSION);
+        rb.writeTo(seg);
+    }
+
+    /**
+     * Appends a class definition record to the argument buffer.
+     */
+    static void encodeClass(RecordBuffer rb, int classId, Class<?> pClass) {
+        int start = rb.startRecord();
+        rb.put(CLASS);
+        rb.putVarLong(classId);
+        rb.putBytes(pClass.getName().getBytes(UTF8));
+        rb.endRecord(start);
+    }
+
+    /**
+     * Appends an update record for the argument entry to the argument buffer.
+     */
+    static void encodeUpdate(RecordBuffer rb, PersistentLogEntry ple, int classId) throws PersistException {
+        int start = rb.startRecord();
+        rb.put(UPDATE);
+        rb.putVarLong(ple.getTranID());
+        rb.putVarLong(classId);
+        byte[] name = ple.getName().getBytes(UTF8);
+        rb.putVarLong(name.length);
+        rb.putBytes(name);
+
+        Serializable val = ple.getVal();
+        if (val == null) {
+            rb.put(VALUE_NULL);
+        } else if (val instanceof byte[]) {
+            rb.put(VALUE_FROZEN);
+            rb.putBytes((byte[]) val);
+        } else if (val instanceof Long) {
+            rb.put(VALUE_LONG);
+            rb.putLong(((Long) val).longValue());
+        } else if (val instanceof Integer) {
+            rb.put(VALUE_INT);
+            rb.putInt(((Integer) val).intValue());
+        } else if (val instanceof Double) {
+            rb.put(VALUE_DOUBLE);
+            rb.putLong(Double.doubleToRawLongBits(((Double) val).doubleValue()));
+        } else {
+            rb.put(VALUE_OBJECT);
+            rb.putBytes(ValueStore.getInstance().store(val));
+        }
+        rb.endRecord(start);
+    }
+
+    /**
+     * Appends a commit record for the argument transaction id to the argument buffer.
+     */
+    static void encodeCommit(RecordBuffer rb, long tranId) {
+        int start = rb.startRecord();
+        rb.put(COMMIT);
+        rb.putVarLong(tranId);
+        rb.endRecord(start);
+    }
+
+    /**
+     * Growable byte array that log records are encoded into.
+     */
+    static final class RecordBuffer {
+
+        RecordBuffer(int size) {
+            buf = new byte[size];
+            count = 0;
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[count++] = b;
+        }
+
+        void putBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, count, b.length);
+            count += b.length;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            putIntAt(count, v);
+            count += 4;
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[count++] = (byte) v;
+        }
+
+        /**
+         * Reserves space for a record's frame and returns the position of the reservation.
+         */
+        int startRecord() {
+            int start = count;
+            ensure(FRAME_SIZE);
+            count += FRAME_SIZE;
+            return start;
+        }
+
+        /**
+         * Fills in the length and checksum of the record started at the argument position.
+         */
+        void endRecord(int start) {
+            int bodyStart = start + FRAME_SIZE;
+            if (crc == null) {
+                crc = Crc32c.newChecksum();
+            }
+            crc.reset();
+            crc.update(buf, bodyStart, count - bodyStart);
+            putIntAt(start, count - bodyStart);
+            putIntAt(start + 4, (int) crc.getValue());
+        }
+
+        private void putIntAt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        void writeTo(LogSegment seg) throws IOException {
+            seg.write(buf, 0, count);
+        }
+
+        private byte[] buf;
+        private int count;
+        private Checksum crc;
+    }
+
+    /**
+     * Reads the records of one log file, returning LogEntry objects.  Class definition
+     * records are consumed internally.  If a damaged or incomplete record is found,
+     * reading stops and getDamageOffset() reports where the damage starts.
+     */
+    static final class Reader {
+
+        Reader(InputStream in, long fileLength) {
+            this.in = new DataInputStream(in);
+            this.fileLength = fileLength;
+            classes = new HashMap<Integer, Class<?>>();
+            crc = Crc32c.newChecksum();
+            offset = 0;
+            damageOffset = -1;
+        }
+
+        /**
+         * Reads and checks the file header.  Returns false if the file is empty or its
+         * header is incomplete.  Throws an IOException if the file is not a log file of a known version.
+         * A log written by a release before this format - a stream of serialized LogEntry
+         * objects - is recognised by its serialization header, and read as such by next().
+         */
+        boolean readHeader() throws IOException {
+            int magic;
+            byte version;
+            in.mark(HEADER_SIZE);
+            try {
+                magic = in.readInt();
+                if (magic == LEGACY_MAGIC) {
+                    in.reset();
+                    legacyIn = new CountingInputStream(in);
+                    legacy = new ObjectInputStream(legacyIn);
+                    offset = legacyIn.count;
+                    recordStart = offset;
+                    return true;
+                }
+                version = in.readByte();
+            } catch (EOFException eof) {
+                if (fileLength > 0) {
+                    damage(0, "incomplete header");
+                }
+                return false;
+            }
+            if (magic != MAGIC || version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Not a transaction log of version " + MIN_VERSION + " to " + VERSION);
+            }
+            offset = HEADER_SIZE;
+            recordStart = offset;
+            return true;
+        }
+
+        /**
+         * Returns the next update or commit entry, or null at the end of the valid records.
+         */
+        LogEntry next() throws IOException, PersistException {
+            if (legacy != null) {
+                return nextLegacy();
+            }
+            for (;;) {
+                int len;
+                int sum;
+                recordStart = offset;
+                try {
+                    len = in.readInt();
+                } catch (EOFException eof) {
+                    return null; // clean end, on a record boundary
+                }
+                if (len == 0) {
+                    // the unwritten (zero) space of a preallocated file - nothing may follow
+                    if (!restIsZero()) {
+                        damage(offset, "zero record length before the end of the data");
+                    }
+                    return null;
+                }
+                if (len < 0 || (fileLength >= 0 && offset + FRAME_SIZE + len > fileLength)) {
+                    damage(offset, "record length " + len + " runs past the end of the file");
+                    return null;
+                }
+                byte[] body = new byte[len];
+                try {
+                    sum = in.readInt();
+                    in.readFully(body);
+                } catch (EOFException eof) {
+                    damage(offset, "incomplete record");
+                    return null;
+                }
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != sum) {
+                    damage(offset, "checksum mismatch");
+                    return null;
+                }
+                offset += FRAME_SIZE + len;
+                LogEntry le = decode(body);
+                if (le != null) {
+                    return le;
+                }
+            }
+        }
+
+        /**
+         * Returns the file offset of the first damaged or incomplete record, or -1 if
+         * every record read so far was intact.
+         */
+        long getDamageOffset() {
+            return damageOffset;
+        }
+
+        /**
+         * Returns a description of the damage found, or null.
+         */
+        String getDamage() {
+            return damage;
+        }
+
+        /**
+         * Records the failure to decode the record being read by next(), or to apply the
+         * entry it returned, as damage at the start of that record - which is then also the
+         * end of the valid data.  Only the first damage found is kept.
+         */
+        void failed(Exception e) {
+            if (damageOffset < 0) {
+                damage(recordStart, String.valueOf(e));
+                offset = recordStart;
+            }
+        }
+
+        /**
+         * Returns the file offset just past the last intact record read.
+         */
+        long getValidLength() {
+            return offset;
+        }
+
+        /**
+         * Returns the next entry of a log in the format of earlier releases, or null at its
+         * end.  Those logs have no checksums: a damaged tail shows as an IOException.
+         * Top level objects are read without buffering ahead, so the count of bytes taken
+         * from the file after each one is its end offset.
+         */
+        private LogEntry nextLegacy() throws IOException {
+            recordStart = offset;
+            try {
+                LogEntry le = (LogEntry) legacy.readObject();
+                offset = legacyIn.count;
+                return le;
+            } catch (EOFException eof) {
+                return null;
+            } catch (ClassNotFoundException cnfe) {
+                throw new IOException("Unknown class in transaction log: " + cnfe.getMessage());
+            }
+        }
+
+        /**
+         * Reads the rest of the file, returning true if it is all zero bytes.
+         */
+        private boolean restIsZero() throws IOException {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; ++i) {
+                    if (buf[i] != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void damage(long at, String why) {
+            damageOffset = at;
+            damage = why;
+        }
+
+        /**
+         * Decodes a record body.  Returns null for a class definition.
+         */
+        private LogEntry decode(byte[] body) throws IOException, PersistException {
+            pos = 0;
+            byte type = body[pos++];
+            switch (type) {
+            case CLASS:
+                int id = (int) getVarLong(body);
+                String cName = new String(body, pos, body.length - pos, UTF8);
+                try {
+                    classes.put(Integer.valueOf(id), loadClass(cName));
+                } catch (ClassNotFoundException cnfe) {
+                    throw new PersistException("Unknown class in transaction log: " + cName);
+                }
+                return null;
+            case UPDATE:
+                long tid = getVarLong(body);
+                Class<?> pClass = classes.get(Integer.valueOf((int) getVarLong(body)));
+                if (pClass == null) {
+                    throw new IOException("Undefined class id in transaction log");
+                }
+                int nLen = (int) getVarLong(body);
+                String name = new String(body, pos, nLen, UTF8);
+                pos += nLen;
+                byte kind = body[pos++];
+                Serializable val;
+                if (kind == VALUE_NULL) {
+                    val = null;
+                } else if (kind == VALUE_LONG) {
+                    val = Long.valueOf(getLong(body));
+                } else if (kind == VALUE_INT) {
+                    val = Integer.valueOf(getInt(body));
+                } else if (kind == VALUE_DOUBLE) {
+                    val = Double.valueOf(Double.longBitsToDouble(getLong(body)));
+                } else {
+                    byte[] raw = Arrays.copyOfRange(body, pos, body.length);
+                    val = (kind == VALUE_FROZEN) ? raw : ValueStore.getInstance().retrieve(raw);
+                }
+                return new PersistentLogEntry(tid, name, pClass, val);
+            case COMMIT:
+                return new EndTransactionEntry(getVarLong(body));
+            default:
+                throw new IOException("Unknown transaction log record type " + type);
+            }
+        }
+
+        private int getInt(byte[] body) {
+            int v = ((body[pos] & 0xFF) << 24) | ((body[pos + 1] & 0xFF) << 16)
+                    | ((body[pos + 2] & 0xFF) << 8) | (body[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        private long getLong(byte[] body) {
+            long high = getInt(body);
+            return (high << 32) | (getInt(body) & 0xFFFFFFFFL);
+        }
+
+        private long getVarLong(byte[] body) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = body[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        private static Class<?> loadClass(String name) throws ClassNotFoundException {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl == null) {
+                cl = LogFormat.class.getClassLoader();
+            }
+            return Class.forName(name, false, cl);
+        }
+
+        private final DataInputStream in;
+        private ObjectInputStream legacy;
+        private CountingInputStream legacyIn;
+        private final long fileLength;
+        private final Map<Integer, Class<?>> classes;
+        private final Checksum crc;
+        private long offset;
+        private long recordStart; // offset of the record being read, or last returned
+        private long damageOffset;
+        private String damage;
+        private int pos;
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                ++count;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        long count;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer ring buffer.
+ * Any number of threads may offer() concurrently; only one thread (the log writer)
+ * may poll().  Each slot carries a sequence number that tells producers when the slot
+ * is free and tells the consumer when the slot has been published.
+ */
+final class LogRing<E> {
+    /**
+     * Builds a ring with at least the requested capacity (rounded up to a power of two).
+     */
+    LogRing(int requested) {
+        int cap = 1;
+        while (cap < requested) {
+            cap <<= 1;
+        }
+        capacity = cap;
+        mask = cap - 1;
+        slots = new AtomicReferenceArray<E>(cap);
+        sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; ++i) {
+            sequences.set(i, i);
+        }
+        tail = new AtomicLong(0);
+        head = 0;
+    }
+
+    /**
+     * Publish the argument element.  Returns false, without blocking, if the ring is full.
+     */
+    boolean offer(E e) {
+        long pos;
+        int idx;
+
+        for (;;) {
+            pos = tail.get();
+            idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                return false; // the consumer has not yet freed this slot - full
+            }
+        }
+        slots.set(idx, e);
+        sequences.set(idx, pos + 1); // publish to the consumer
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest published element, or null if there is none.
+     * Must only be called by the single consumer thread.
+     */
+    E poll() {
+        int idx = (int) (head & mask);
+
+        if (sequences.get(idx) != head + 1) {
+            return null;
+        }
+        E e = slots.get(idx);
+        slots.set(idx, null);
+        sequences.set(idx, head + capacity); // free the slot for the next lap
+        ++head;
+        return e;
+    }
+
+    /**
+     * Returns true if no published element is waiting for the consumer.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private long head;
+}
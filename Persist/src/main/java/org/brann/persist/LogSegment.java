@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One file of the transaction log, as seen by the log writer.
+ */
+interface LogSegment {
+
+    /**
+     * Append bytes to the segment.  They may be buffered until flush().
+     */
+    void write(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Pass any buffered bytes to the operating system.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Force everything flushed so far to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Returns the number of bytes written to the segment, including any still buffered.
+     */
+    long size();
+
+    /**
+     * Returns true if the argument number of further bytes fit in the segment without growing its file.
+     */
+    boolean hasRoom(int len);
+
+    /**
+     * Flush and close the segment.
+     */
+    void close() throws IOException;
+
+    File getFile();
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single thread that writes the transaction log.  Committing threads encode their
+ * log records themselves and publish them, as one Submission per transaction, into a
+ * bounded lock-free ring.  The writer drains the ring in batches, writes each batch to
+ * the log file with a single flush (and, when due, a single sync) and then completes
+ * the future of every Submission in the batch.
+ */
+class LogWriter implements Runnable {
+
+    /**
+     * A unit of work for the log writer: the pre-encoded records of one committing transaction.
+     */
+    static class Submission {
+
+        Submission(byte[] data, List<PersistentLogEntry> entries) {
+            this.data = data;
+            this.entries = entries;
+        }
+
+        final byte[] data;
+        final List<PersistentLogEntry> entries;
+        final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+    }
+
+    LogWriter(TransactionLog log) {
+        this.log = log;
+        ring = new LogRing<Submission>(RING_SIZE);
+        batch = new ArrayList<Submission>(ring.capacity());
+    }
+
+    /**
+     * Starts the writer thread, unless it is already running - the ring has a single consumer.
+     */
+    void start() {
+        if (myThread != null && myThread.isAlive()) {
+            return;
+        }
+        stop = false;
+        myThread = new Thread(this, "Log Writer");
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    /**
+     * Publish the argument Submission to the writer.  Blocks only while the ring is full.
+     * Returns the Submission's future, which completes with true once the records have
+     * been written (and synchronized, if a sync was due), or false on failure.
+     * A Submission counts as in flight from before it checks for shut down until it is in
+     * the ring, and the writer does not stop while any is in flight - so every Submission
+     * either fails at once or is seen by the writer.
+     */
+    CompletableFuture<Boolean> submit(Submission s) {
+
+        inFlight.incrementAndGet();
+        try {
+            if (stop) {
+                s.done.complete(Boolean.FALSE);
+                return s.done;
+            }
+            while (!ring.offer(s)) {
+                LockSupport.unpark(myThread);
+                LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        if (idle) {
+            LockSupport.unpark(myThread);
+        }
+        return s.done;
+    }
+
+    /**
+     * Stops the writer after it has written everything already submitted.
+     */
+    void shutDown() {
+
+        stop = true;
+        if (myThread != null) {
+            LockSupport.unpark(myThread);
+            try {
+                myThread.join();
+            } catch (InterruptedException ie) {
+            }
+        }
+        // the writer leaves nothing behind - but never leave a future pending
+        Submission s;
+        while ((s = ring.poll()) != null) {
+            s.done.complete(Boolean.FALSE);
+        }
+    }
+
+    public void run() {
+
+        // in this order: once stopped, a submitter that is no longer in flight has either
+        // failed or already put its Submission in the ring
+        while (!stop || inFlight.get() != 0 || !ring.isEmpty()) {
+            Submission s;
+            while (batch.size() < ring.capacity() &&
+                   (s = ring.poll()) != null) {
+                batch.add(s);
+            }
+
+            if (batch.isEmpty()) {
+                idle = true;
+                if (ring.isEmpty()) {
+                    if (!stop) {
+                        LockSupport.park(this);
+                    } else {
+                        Thread.yield(); // a last submitter is still publishing
+                    }
+                }
+                idle = false;
+                continue;
+            }
+            writeBatch();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write all of the Submissions in the current batch, then flush and, if due, sync
+     * the log once for the whole batch before completing their futures.  A record that does
+     * not fit in the current file moves the batch on to a new one.  Once the batch is
+     * complete, the log is rolled if the roll policy recommends it.
+     */
+    private void writeBatch() {
+
+        int from = 0;
+
+        try {
+            for (int i = 0; i < batch.size(); ++i) {
+                Submission s = batch.get(i);
+                if (!log.hasRoom(s.data.length)) {
+                    // the current file is full - close off what is written and move to a new one
+                    completeWritten(from, i);
+                    log.rollLogfileNow();
+                    from = i;
+                }
+                log.writeRecords(s.data, s.entries);
+            }
+            completeWritten(from, batch.size());
+            if (log.recommendCkp()) {
+                // roll between batches, once the commits above are released - transactions
+                // in flight carry on and their commit records go to the new file
+                log.rollLogfileNow();
+            }
+        } catch (Exception e) {
+            System.err.println("Failure writing transaction log: " + e);
+            for (Submission s : batch) {
+                s.done.complete(Boolean.FALSE);
+            }
+        }
+    }
+
+    /**
+     * Flushes (and syncs, when due) the log and completes the futures of the
+     * commit Submissions in the batch from index 'from' up to (not including) 'to'.
+     */
+    private void completeWritten(int from, int to) throws java.io.IOException {
+
+        if (from >= to) {
+            return;
+        }
+        log.flushLog();
+        numCmts += to - from;
+        if (TransactionMgr.getInstance().isGroupCommit() ||
+            numCmts >= TransactionMgr.getInstance().getSyncFrequency()) {
+            numCmts = 0;
+            log.syncLog();
+        }
+        for (int i = from; i < to; ++i) {
+            batch.get(i).done.complete(Boolean.TRUE);
+        }
+    }
+
+    static final int RING_SIZE = 1024;
+    private static final long FULL_BACKOFF_NANOS = 50000L;
+
+    private final TransactionLog log;
+    private final LogRing<Submission> ring;
+    private final List<Submission> batch;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private Thread myThread;
+    private volatile boolean stop;
+    private volatile boolean idle;
+    private int numCmts = 0;
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+/**
+ * Tuning parameters for the persistence engine's transaction log and checkpoints.
+ * A new PersistConfig takes its initial values from system properties (see the
+ * constants below), falling back to built-in defaults.  Pass one to
+ * TransactionMgr.coldStart() or warmStart(); the active configuration is available from
+ * TransactionMgr.getConfig(), and changes made to it take effect at the next log roll.
+ */
+public class PersistConfig {
+
+    public static final String SEGMENT_SIZE = "org.brann.persist.segmentSize";
+    public static final String CHECKPOINT_FILE_SIZE = "org.brann.persist.checkpointFileSize";
+    public static final String ROLL_INTERVAL = "org.brann.persist.rollInterval";
+    public static final String ADAPTIVE_ROLL = "org.brann.persist.adaptiveRoll";
+    public static final String MIN_SEGMENT_SIZE = "org.brann.persist.minSegmentSize";
+    public static final String MAX_SEGMENT_SIZE = "org.brann.persist.maxSegmentSize";
+    public static final String PREALLOCATE = "org.brann.persist.preallocate";
+    public static final String COMPACT_CHECKPOINTS = "org.brann.persist.compactCheckpoints";
+    public static final String CHECKPOINT_COMPACTION_THRESHOLD = "org.brann.persist.checkpointCompactionThreshold";
+    public static final String MVCC = "org.brann.persist.mvcc";
+    public static final String LOCK_TIMEOUT = "org.brann.persist.lockTimeout";
+
+    /**
+     * Builds a configuration from the system properties, using defaults for any not set.
+     */
+    public PersistConfig() {
+        segmentSize = Long.getLong(SEGMENT_SIZE, TransactionMgr.MAX_FILESIZE).longValue();
+        checkpointFileSize = Long.getLong(CHECKPOINT_FILE_SIZE, TransactionMgr.MAX_FILESIZE).longValue();
+        rollInterval = Long.getLong(ROLL_INTERVAL, 0L).longValue();
+        adaptiveRoll = Boolean.getBoolean(ADAPTIVE_ROLL);
+        minSegmentSize = Long.getLong(MIN_SEGMENT_SIZE, 64L * 1024).longValue();
+        maxSegmentSize = Long.getLong(MAX_SEGMENT_SIZE, 256L * 1024 * 1024).longValue();
+        preallocatedSegments = Boolean.getBoolean(PREALLOCATE);
+        compactCheckpoints = Boolean.getBoolean(COMPACT_CHECKPOINTS);
+        checkpointCompactionThreshold = Integer.getInteger(CHECKPOINT_COMPACTION_THRESHOLD, 4).intValue();
+        mvcc = Boolean.getBoolean(MVCC);
+        lockTimeout = Long.getLong(LOCK_TIMEOUT, 0L).longValue();
+    }
+
+    /** Getter for property segmentSize.
+     * @return The number of bytes of log after which a log roll (and the checkpoint of
+     * the rolled file) is triggered.  With adaptive rolling, the size used before any commit rate has been observed.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Setter for property segmentSize.
+     * @param segmentSize New value of property segmentSize.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /** Getter for property checkpointFileSize.
+     * @return The size after which the checkpointer starts a new checkpoint file.
+     */
+    public long getCheckpointFileSize() {
+        return checkpointFileSize;
+    }
+
+    /** Setter for property checkpointFileSize.
+     * @param checkpointFileSize New value of property checkpointFileSize.
+     */
+    public void setCheckpointFileSize(long checkpointFileSize) {
+        this.checkpointFileSize = checkpointFileSize;
+    }
+
+    /** Getter for property rollInterval.
+     * @return The target time, in milliseconds, between log rolls.  When greater than zero
+     * a log file is also rolled once it is this old, whatever its size.  Zero (the default)
+     * rolls on size alone.
+     */
+    public long getRollInterval() {
+        return rollInterval;
+    }
+
+    /** Setter for property rollInterval.
+     * @param rollInterval New value of property rollInterval.
+     */
+    public void setRollInterval(long rollInterval) {
+        this.rollInterval = rollInterval;
+    }
+
+    /** Getter for property adaptiveRoll.
+     * @return true if the segment size is recalculated at each roll from the observed rate
+     * of logging, so that rolls happen about every rollInterval milliseconds.
+     */
+    public boolean isAdaptiveRoll() {
+        return adaptiveRoll;
+    }
+
+    /** Setter for property adaptiveRoll.
+     * @param adaptiveRoll New value of property adaptiveRoll.
+     */
+    public void setAdaptiveRoll(boolean adaptiveRoll) {
+        this.adaptiveRoll = adaptiveRoll;
+    }
+
+    /** Getter for property minSegmentSize.
+     * @return The smallest segment size adaptive rolling will choose.
+     */
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    /** Setter for property minSegmentSize.
+     * @param minSegmentSize New value of property minSegmentSize.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /** Getter for property maxSegmentSize.
+     * @return The largest segment size adaptive rolling will choose.
+     */
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /** Setter for property maxSegmentSize.
+     * @param maxSegmentSize New value of property maxSegmentSize.
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /** Getter for property preallocatedSegments.
+     * @return true if each transaction log file is allocated at its full size in the background,
+     * before it is needed, and is written by position, so that a sync only has to force data to
+     * disk and never the file's size.
+     */
+    public boolean isPreallocatedSegments() {
+        return preallocatedSegments;
+    }
+
+    /** Setter for property preallocatedSegments.
+     * @param preallocatedSegments New value of property preallocatedSegments.
+     */
+    public void setPreallocatedSegments(boolean preallocatedSegments) {
+        this.preallocatedSegments = preallocatedSegments;
+    }
+
+    /** Getter for property compactCheckpoints.
+     * @return true if each checkpoint keeps only the latest image of every key changed in the
+     * rolled log file (with a tombstone for a deletion), rather than every update.
+     */
+    public boolean isCompactCheckpoints() {
+        return compactCheckpoints;
+    }
+
+    /** Setter for property compactCheckpoints.
+     * @param compactCheckpoints New value of property compactCheckpoints.
+     */
+    public void setCompactCheckpoints(boolean compactCheckpoints) {
+        this.compactCheckpoints = compactCheckpoints;
+    }
+
+    /** Getter for property checkpointCompactionThreshold.
+     * @return The number of closed checkpoint files at which the checkpointer merges them into
+     * a single file holding the latest image of each key.  Less than 2 disables compaction.
+     */
+    public int getCheckpointCompactionThreshold() {
+        return checkpointCompactionThreshold;
+    }
+
+    /** Setter for property checkpointCompactionThreshold.
+     * @param checkpointCompactionThreshold New value of property checkpointCompactionThreshold.
+     */
+    public void setCheckpointCompactionThreshold(int checkpointCompactionThreshold) {
+        this.checkpointCompactionThreshold = checkpointCompactionThreshold;
+    }
+
+    /** Getter for property mvcc.
+     * @return true if committed values are versioned by commit sequence, so that snapshot
+     * transactions can read without taking control of any Persistent.
+     */
+    public boolean isMvcc() {
+        return mvcc;
+    }
+
+    /** Setter for property mvcc.  Takes effect when the engine is next started.
+     * @param mvcc New value of property mvcc.
+     */
+    public void setMvcc(boolean mvcc) {
+        this.mvcc = mvcc;
+    }
+
+    /** Getter for property lockTimeout.
+     * @return The longest time, in milliseconds, a transaction waits for control of a Persistent
+     * before it is rolled back with a LockTimeoutException, unless its TransactionHandle sets its
+     * own.  0 means no limit.
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /** Setter for property lockTimeout.
+     * @param lockTimeout New value of property lockTimeout.
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    private volatile long segmentSize;
+    private volatile long checkpointFileSize;
+    private volatile long rollInterval;
+    private volatile boolean adaptiveRoll;
+    private volatile long minSegmentSize;
+    private volatile long maxSegmentSize;
+    private volatile boolean preallocatedSegments;
+    private volatile boolean compactCheckpoints;
+    private volatile int checkpointCompactionThreshold;
+    private volatile boolean mvcc;
+    private volatile long lockTimeout;
+}
@@ -32,6 +32,11 @@
 package org.brann.persist;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -40,8 +45,9 @@ import java.io.Serializable;
  * Manages object content during transactions and implements a two-phase commit
  * protocol to provide consistent behaviour in all circumstances. 
  */
-@SuppressWarnings("serial")
 abstract class Persistent implements Serializable, java.lang.Comparable<Persistent> {
+
+    private static final long serialVersionUID = 83534984820107087L; // Version ID to allow de-serialization after change.
     
     static {
         try {
@@ -83,23 +89,34 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     /**
      * Return the content of this Persistent object, in its native form. 
      */
-    synchronized Serializable getValue(Transaction tx) 
+    Serializable getValue(Transaction tx) 
                 throws PersistException {
-                    
-        if (tx == null) {
-            throw new PersistException ("Attempted get without transaction.");
-        } else if (validateXaction(tx)) {
+        lock.lock();
+        try {
+            if (tx == null) {
+                throw new PersistException ("Attempted get without transaction.");
+            } else if (readers.contains(tx)) {
+                // shared control - read the committed value
+                if (!tx.isAlive()) {
+                    throw new PersistException ("Transaction killed.");
+                }
+                return (valueCommitted == null) ? null : obtainValue(valueCommitted);
+            } else if (validateXaction(tx)) {
         
-                if (!changedInTransaction) {
-                    if (valueCommitted == null) {
-                        valueTransaction = null;
-                    } else {
-                        valueTransaction = obtainValue(valueCommitted);
+                    if (!changedInTransaction) {
+                        if (valueCommitted == null) {
+                            valueTransaction = null;
+                        } else {
+                            valueTransaction = obtainValue(valueCommitted);
+                        }
                     }
-                return valueTransaction;
+                    // once changed, the controlling transaction reads back what it has set
+                    return valueTransaction;
                 }
-            }
-        return null;
+            return null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     protected abstract Serializable obtainValue(Serializable val) throws PersistException;
@@ -123,17 +140,20 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
      * sets the Persistent content to the parameter value, under the parameter transaction.  if the Persistent is currently under the control of a different transaction or the value parameter is not an object of the class specified for this Persistent,  throws a PersistException.
      * If the parameter transaction is not 'alive' - it is marked for forced roll-back, is committed or otherwise completed, no action is taken. 
      */
-    synchronized void set (Transaction tx, Serializable value) throws PersistException {
-
-        if (validateXaction(tx)) {
-            if (value != null &&
-                !(value.getClass().equals(persistentClass))) {
+    void set (Transaction tx, Serializable value) throws PersistException {
+        lock.lock();
+        try {
+            if (validateXaction(tx)) {
+                if (!isValueOf(persistentClass, value)) {
 
-                throw new PersistException("Attempt to change class of Persistent");
-            }
+                    throw new PersistException("Attempt to change class of Persistent");
+                }
         
-            changedInTransaction = true;
-            valueTransaction = value;
+                changedInTransaction = true;
+                valueTransaction = value;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -155,9 +175,25 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
 
          if (current == tx) {
              clearXaction();
+         } else {
+             releaseShared(tx);
          }
     }
 
+    /**
+     * Releases shared control of this object by the argument transaction, if it has it. 
+     */
+    void releaseShared(Transaction tx) {
+        lock.lock();
+        try {
+            if (readers.remove(tx)) {
+                grantWaiters();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     public String toString() {
         
@@ -177,34 +213,137 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     /** validate commit request and prepare for finalization of commit.
      * Returns true if this persistent is able to commit, false otherwise.
      */
-    synchronized boolean commitPhase1(Transaction tx) {
-        if (tx == current) {
-            inCommit = true;
-            if (changedInTransaction && valueTransaction != null) {
-                try {
-                    valueCommitting = storeValue(valueTransaction);
-                } catch (Exception e) {
-                    System.err.println("Failed serialization - aborting transaction: " + e);
-                    return false;
+    boolean commitPhase1(Transaction tx) {
+        lock.lock();
+        try {
+            if (tx == current) {
+                inCommit = true;
+                if (changedInTransaction && valueTransaction != null) {
+                    try {
+                        valueCommitting = storeValue(valueTransaction);
+                    } catch (Exception e) {
+                        System.err.println("Failed serialization - aborting transaction: " + e);
+                        return false;
+                    }
+                } else {
+                    valueCommitting = null;
                 }
-            } else {
-                valueCommitting = null;
+                return true;
+            }  else {
+                return false;
             }
-            return true;
-        }  else {
-            return false;
+        } finally {
+            lock.unlock();
         }
     }    
 
     /**
      * complete the commit action. 
      */
-    synchronized void commitPhase2(Transaction tx) {
-        
-        if (changedInTransaction) {
-            valueCommitted = valueCommitting;
+    void commitPhase2(Transaction tx) {
+        lock.lock();
+        try {
+            commitPhase2(tx, 0L, Long.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * complete the commit action, published as commit sequence seq.  If an open snapshot
+     * (the oldest of which started at sequence oldest) may still need the value being replaced,
+     * it is kept as a version.  Returns true if this object holds old versions afterwards.
+     */
+    boolean commitPhase2(Transaction tx, long seq, long oldest) {
+        lock.lock();
+        try {
+            if (changedInTransaction) {
+                if (seq > 0 &&
+                    (versions != null || oldest < seq)) {
+                    if (versions == null) {
+                        // the replaced value is visible to every snapshot before this commit
+                        versions = new Version(0L, valueCommitted, null);
+                    }
+                    versions = new Version(seq, valueCommitting, versions);
+                }
+                valueCommitted = valueCommitting;
+                ++version;
+            }
+            clearXaction();
+            return pruneVersions(oldest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the versions no snapshot opened at or after the oldest sequence can read.
+     * Returns true if old versions remain.
+     */
+    boolean pruneVersions(long oldest) {
+        lock.lock();
+        try {
+            if (versions == null) {
+                return false;
+            }
+            Version v = versions;
+            while (v.seq > oldest) {
+                v = v.older;
+            }
+            v.older = null;
+            if (v == versions) {
+                // the newest version is the committed value, and is all any snapshot can see
+                versions = null;
+            }
+            return versions != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of committed changes to this object since it was loaded. 
+     */
+    long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the committed content of this Persistent object, in its native form, without
+     * taking control of it. 
+     */
+    Serializable getCommittedValue() throws PersistException {
+        lock.lock();
+        try {
+            return (valueCommitted == null) ? null : obtainValue(valueCommitted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the content of this Persistent object as committed at the argument commit 
+     * sequence, in its native form.  Takes no control of the object.
+     */
+    Serializable getSnapshotValue(long seq) throws PersistException {
+        lock.lock();
+        try {
+            Serializable raw = valueCommitted;
+            for (Version v = versions; v != null; v = v.older) {
+                if (v.seq <= seq) {
+                    raw = v.value;
+                    break;
+                }
+            }
+            return (raw == null) ? null : obtainValue(raw);
+        } finally {
+            lock.unlock();
         }
-        clearXaction();
     }
     
     /**
@@ -230,15 +369,48 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     }
     */
     /**
-     * Tidy up all internal state and interim content.  returns the object to a state where it can 
-     * give control to a transaction. 
+     * Tidy up all internal state and interim content, and hand control directly to the first
+     * live transaction waiting for it, if any, waking its thread.  Otherwise returns the object
+     * to a state where it can give control to a transaction. 
      */
-    private synchronized void clearXaction() {
-        valueTransaction = null;
-        valueCommitting = null;
-        current = null;
-        changedInTransaction = false;
-        inCommit = false;
+    private void clearXaction() {
+        lock.lock();
+        try {
+            valueTransaction = null;
+            valueCommitting = null;
+            current = null;
+            changedInTransaction = false;
+            inCommit = false;
+            grantWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Hands control to the waiters at the head of the queue that can now have it, in order,
+     * waking their threads: one exclusive waiter once there are no other holders, or every
+     * shared waiter up to the next exclusive one while there is no exclusive holder.
+     */
+    private void grantWaiters() {
+        
+        Waiter next;
+        while ((next = waiters.peek()) != null) {
+            if (!next.tx.isAlive()) {
+                waiters.poll();
+            } else if (next.shared && current == null) {
+                waiters.poll();
+                readers.add(next.tx);
+                next.tx.wake();
+            } else if (!next.shared && current == null && readers.isEmpty()) {
+                waiters.poll();
+                current = next.tx;
+                next.tx.wake();
+                break;
+            } else {
+                break;
+            }
+        }
     }
     
     /**
@@ -249,6 +421,9 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
         if (tManager == null) {
             tManager = TransactionMgr.getInstance();
         }
+        lock = new ReentrantLock();
+        waiters = new ArrayDeque<Waiter>();
+        readers = new HashSet<Transaction>();
         changedInTransaction = false;
         inCommit = false;
     }
@@ -287,22 +462,171 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     }
     
     /**
-     * If available for control, make the parameter transaction the controlling transaction.  
-     * Return the current controlling transaction. 
+     * If available for control in the requested mode (exclusive, or shared with other
+     * readers), give the parameter transaction control.  Otherwise, queue it (once) to be
+     * handed control when the transactions ahead of it are done; the queue is strictly FIFO,
+     * so readers cannot starve a waiting writer.
+     * Return true if the transaction now has control, false if it is queued or if this
+     * object has been retired.
      */
-    synchronized Transaction giveControl(Transaction acquirer) {
-        
-        setCurrent(acquirer);
-        return current;
+    boolean giveControl(Transaction acquirer, boolean shared) {
+        lock.lock();
+        try {
+            if (retired) {
+                return false;
+            }
+            if (isHeldBy(acquirer)) {
+                return true;
+            }
+            if (findWaiter(acquirer) == null) {
+                if (waiters.isEmpty() &&
+                    current == null &&
+                    (shared || readers.isEmpty())) {
+                    if (shared) {
+                        readers.add(acquirer);
+                    } else {
+                        current = acquirer;
+                    }
+                    return true;
+                }
+                waiters.add(new Waiter(acquirer, shared));
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void setCurrent(Transaction acquirer) {
+    /**
+     * Returns true if the argument transaction has control of this object, in either mode.
+     */
+    boolean isHeldBy(Transaction tx) {
+        lock.lock();
+        try {
+            return current == tx || readers.contains(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (current == null) {
-            current = acquirer;
+    /**
+     * Returns the transactions the argument (queued) transaction is waiting for: the holders
+     * it conflicts with and the conflicting waiters queued ahead of it.  Empty if it is not queued.
+     */
+    List<Transaction> blockersOf(Transaction tx) {
+        lock.lock();
+        try {
+            List<Transaction> rv = new ArrayList<Transaction>();
+            Waiter me = findWaiter(tx);
+            if (me == null) {
+                return rv;
+            }
+            if (current != null) {
+                rv.add(current);
+            }
+            if (!me.shared) {
+                rv.addAll(readers);
+            }
+            for (Waiter w : waiters) {
+                if (w == me) {
+                    break;
+                }
+                if (!w.shared || !me.shared) {
+                    rv.add(w.tx);
+                }
+            }
+            return rv;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Withdraws the argument transaction from the queue for this object.  If control has
+     * already been handed to it, passes control on to the next waiters.
+     */
+    void cancelWait(Transaction tx) {
+        lock.lock();
+        try {
+            Waiter w = findWaiter(tx);
+            if (w != null) {
+                waiters.remove(w);
+                grantWaiters(); // it may have been holding back the waiters behind it
+            }
+            if (current == tx) {
+                clearXaction();
+            } else {
+                releaseShared(tx);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Waiter findWaiter(Transaction tx) {
+        for (Waiter w : waiters) {
+            if (w.tx == tx) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If this object's committed value is null (it has been deleted) and no transaction
+     * controls it, marks it as retired - it can never be controlled again - and returns true.
+     * Otherwise returns false.
+     */
+    boolean retireIfDeleted() {
+        lock.lock();
+        try {
+            if (current == null && readers.isEmpty() && valueCommitted == null && versions == null) {
+                retired = true;
+            }
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if this object has been deleted and removed from the library.
+     */
+    boolean isRetired() {
+        lock.lock();
+        try {
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A committed value kept for snapshot reads, and the commit sequence it was published at.
+     */
+    private static class Version {
+        Version(long seq, Serializable value, Version older) {
+            this.seq = seq;
+            this.value = value;
+            this.older = older;
+        }
+        final long seq;
+        final Serializable value;
+        Version older;
+    }
+
+    /**
+     * A transaction queued for control, and the mode it wants.
+     */
+    private static class Waiter {
+        Waiter(Transaction tx, boolean shared) {
+            this.tx = tx;
+            this.shared = shared;
+        }
+        final Transaction tx;
+        final boolean shared;
+    }
+
     public Object getKey() {
         return (persistentClass.getName()+name);
     }
@@ -324,9 +648,26 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
         return true;
     }
     
+    /**
+     * Returns true if the argument value may be held by a Persistent of the argument class: 
+     * null, an object of exactly that class or, for the ByteBuffer class, a byte[].
+     */
+    static boolean isValueOf(Class<?> pClass, Serializable value) {
+        
+        return value == null ||
+               value.getClass().equals(pClass) ||
+               (BytesPersistent.isBytes(pClass) && value instanceof byte[]);
+    }
+    
     static Persistent persistentFactory(PersistentLogEntry ple) {
         
-        if (cClass != null &&
+        if (CodecPersistent.getCodec(ple.getPersistentClass()) != null) {
+            return new CodecPersistent(ple);
+        } else if (PrimitivePersistent.isPrimitive(ple.getPersistentClass())) {
+            return new PrimitivePersistent(ple);
+        } else if (BytesPersistent.isBytes(ple.getPersistentClass())) {
+            return new BytesPersistent(ple);
+        } else if (cClass != null &&
             cClass.isAssignableFrom(ple.getPersistentClass())) {
             return new ClonedPersistent(ple);
         } else if (uClass != null &&
@@ -339,7 +680,13 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     
     static Persistent persistentFactory(String name, Class<?> pClass) {
         
-        if (cClass != null &&
+        if (CodecPersistent.getCodec(pClass) != null) {
+            return new CodecPersistent(name, pClass);
+        } else if (PrimitivePersistent.isPrimitive(pClass)) {
+            return new PrimitivePersistent(name, pClass);
+        } else if (BytesPersistent.isBytes(pClass)) {
+            return new BytesPersistent(name, pClass);
+        } else if (cClass != null &&
             cClass.isAssignableFrom(pClass)) {
             return new ClonedPersistent(name, pClass);
         } else if (uClass != null &&
@@ -355,6 +702,12 @@ abstract class Persistent implements Serializable, java.lang.Comparable<Persiste
     private static Class<?> uClass;
 
     private transient Transaction current;
+    private transient boolean retired;
+    private transient ReentrantLock lock; // guards control and content - never held while waiting
+    private transient ArrayDeque<Waiter> waiters; // FIFO of transactions waiting for control
+    private transient HashSet<Transaction> readers; // transactions with shared control
+    private transient long version; // count of committed changes, for optimistic validation
+    private transient Version versions; // newest first - null unless a snapshot may need an old value
     private transient boolean inCommit;
     private transient boolean changedInTransaction;
     protected transient Serializable valueCommitting;
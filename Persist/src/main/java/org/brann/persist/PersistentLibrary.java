@@ -35,8 +35,17 @@ import java.io.*;
 import java.nio.channels.FileLock;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 
 /**
@@ -57,6 +66,7 @@ class PersistentLibrary {
         throws PersistException {
         String reason = null;
         
+        this.libDir = new File(libDir);
         libName = libDir + File.separator + "Library";
         lib = new File (libName);
         if (!(lib.exists())) {
@@ -87,8 +97,13 @@ class PersistentLibrary {
 
     /**
      * Builds an empty library.  If the argument is true, attempts to populate from a saved
-     * Library file.  Any restoration failures are logged, and may result in objects not being
-     * restored, but this method will always succeed. 
+     * Library: the newest full image written by a previous shutdown and the segments written
+     * after it, applied in order - or, if there is no full image yet, all the segments on top
+     * of a Library file in the single-image format of earlier releases if one is present.
+     * Files older than the newest full image were replaced by it, and are left over only if a
+     * shutdown stopped before deleting them: they are ignored, and deleted at the next shutdown.
+     * Entries are streamed in one at a time.  Any restoration failures are logged, and may
+     * result in objects not being restored, but this method will always succeed. 
      */
     @SuppressWarnings("unchecked")
 	private synchronized void initLibrary (boolean rebuild) {
@@ -98,70 +113,197 @@ class PersistentLibrary {
         InflaterInputStream iis = null;
         ObjectInputStream ois = null;
         
-        classLibrary = new HashMap<Class<?>, Map<String, Persistent>>();  // This will be blown away if we succeed in reading
-                                       // from disk - but that might fail (if we weren't
-                                       // closed down cleanly) - sp provide an empty one
+        classLibrary = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Persistent>>();
+        dirty = new ConcurrentHashMap<Class<?>, Set<String>>();
+        segments = listSegments();
+        stale = new ArrayList<File>();
+        new File(libDir, SEGMENT_TMPNAME).delete(); // an unfinished shutdown - its segment was never used
         
         if (rebuild) {
-            try {
-                fis = new FileInputStream(lib);
-                bis = new BufferedInputStream(fis);
-                iis = new InflaterInputStream(bis);
-                ois = new ObjectInputStream (iis);
-                classLibrary = (HashMap<Class<?>, Map<String, Persistent>>)ois.readObject();
-            } catch (IOException ioe) {
-                System.err.println ("IO problem restoring library zip: " + ioe);
-            } catch (ClassNotFoundException cnfe) {
-                System.err.println ("Problem restoring class in library: " + cnfe);
-            } finally {
-                try {
-                    if (ois != null)
-                        ois.close();
-                } catch (Exception e) {}
-                try {
-                    if (iis != null)
-                        iis.close();
-                } catch (Exception e) {}
-                try {
-                    if (bis != null)
-                        bis.close();
-                } catch (Exception e) {}
+            int base = -1;
+            for (int x = segments.size() - 1; base < 0 && x >= 0; --x) {
+                if (isImage(segments.get(x))) {
+                    base = x;
+                }
+            }
+            if (base >= 0) {
+                // the full image has no tombstones - nothing older may be applied on top of it
+                stale.addAll(segments.subList(0, base));
+                segments = new ArrayList<File>(segments.subList(base, segments.size()));
+                if (lib.exists()) {
+                    stale.add(lib);
+                }
+            } else if (lib.exists()) {
+                // image from an earlier release - read it as the base, and replace it at the next shutdown
+                legacyImage = true;
                 try {
-                    if (fis != null)
-                        fis.close();
-                } catch (Exception e) {}
+                    fis = new FileInputStream(lib);
+                    bis = new BufferedInputStream(fis);
+                    iis = new InflaterInputStream(bis);
+                    ois = new ObjectInputStream (iis);
+                    HashMap<Class<?>, Map<String, Persistent>> image = (HashMap<Class<?>, Map<String, Persistent>>)ois.readObject();
+                    for (Map.Entry<Class<?>, Map<String, Persistent>> e : image.entrySet()) {
+                        classMap(e.getKey()).putAll(e.getValue());
+                    }
+                } catch (IOException ioe) {
+                    System.err.println ("IO problem restoring library zip: " + ioe);
+                } catch (ClassNotFoundException cnfe) {
+                    System.err.println ("Problem restoring class in library: " + cnfe);
+                } finally {
+                    try {
+                        if (ois != null)
+                            ois.close();
+                    } catch (Exception e) {}
+                    try {
+                        if (iis != null)
+                            iis.close();
+                    } catch (Exception e) {}
+                    try {
+                        if (bis != null)
+                            bis.close();
+                    } catch (Exception e) {}
+                    try {
+                        if (fis != null)
+                            fis.close();
+                    } catch (Exception e) {}
+                }
             }
-//            flusher.replay(this);
+            for (File seg : segments) {
+                if (!readSegment(seg)) {
+                    damaged = true;
+                }
+            }
+            dirty.clear();
         } else {
             try {
                 lib.delete();
+                for (File seg : segments) {
+                    seg.delete();
+                }
+                segments.clear();
 //                flusher.coldStart();
             } catch (Exception e) {System.out.println(e);
             }
         }
     }
     
+    /**
+     * Streams the entries of one library segment into the library.  A Persistent replaces any
+     * existing object of the same name and class; a PersistentLogEntry is a deletion.
+     * Returns false if the segment could not be read to its end.  Segments are only renamed
+     * into place once complete, so the entries after the damage are lost: those read before
+     * it are kept.
+     */
+    private boolean readSegment(File seg) {
+        
+        ObjectInputStream ois = null;
+        int restored = 0;
+        try {
+            ois = new ObjectInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(seg))));
+            Object o;
+            while ((o = ois.readObject()) != null) {
+                if (o instanceof Persistent) {
+                    addTo((Persistent) o);
+                } else {
+                    // a deletion - make sure there is a deleted object to remove, as in log replay
+                    PersistentLogEntry ple = (PersistentLogEntry) o;
+                    addTo(Persistent.persistentFactory(ple));
+                    removePersistent(ple);
+                }
+                ++restored;
+            }
+        } catch (Exception e) {
+            System.err.println ("Library segment " + seg + " damaged after " + restored + 
+                                " entries - the changes after them are lost: " + e);
+            return false;
+        } finally {
+            try {
+                if (ois != null)
+                    ois.close();
+            } catch (Exception e) {}
+        }
+        return true;
+    }
+    
     /**
      * Performs a final shutdown of the library.
-     * Writes out the library contents to a library file and causes all intermediate 
-     * checkpoint images to be destroyed. 
+     * Writes the objects changed since the library was loaded to a new library segment.  Every
+     * MAX_SEGMENTS shutdowns (or when more than half of the library has changed, or a file it
+     * was loaded from was damaged) the whole library is written instead, as a full image, and
+     * the files it replaces are deleted.  A segment or image is
+     * written to a temporary file, synced and then renamed into place, so a failure part way
+     * through leaves the previous image intact.
      */
     synchronized void shutDown() {
     
         try {
-                FileOutputStream poFile = new FileOutputStream(lib);
+                int size = 0;
+                for (Map<String, Persistent> m : classLibrary.values()) {
+                    size += m.size();
+                }
+                int changed = 0;
+                for (Set<String> names : dirty.values()) {
+                    changed += names.size();
+                }
+                boolean full = legacyImage || damaged ||
+                               segments.size() >= MAX_SEGMENTS ||
+                               changed * 2 > size;
+                
+                File tmp = new File(libDir, SEGMENT_TMPNAME);
+                FileOutputStream poFile = new FileOutputStream(tmp);
                 java.io.FileDescriptor poFD = poFile.getFD();                
                 DeflaterOutputStream poZip = new DeflaterOutputStream(new BufferedOutputStream(poFile));
                 ObjectOutputStream poObj = new ObjectOutputStream(poZip);
                 
-                poObj.writeObject(classLibrary);
+                if (full) {
+                    for (Map<String, Persistent> m : classLibrary.values()) {
+                        for (Persistent p : m.values()) {
+                            poObj.writeObject(p);
+                            poObj.reset(); // don't let the stream hold on to everything written
+                        }
+                    }
+                } else {
+                    for (Map.Entry<Class<?>, Set<String>> e : dirty.entrySet()) {
+                        Map<String, Persistent> m = classLibrary.get(e.getKey());
+                        for (String name : e.getValue()) {
+                            Persistent p = (m == null) ? null : m.get(name);
+                            if (p != null) {
+                                poObj.writeObject(p);
+                            } else {
+                                poObj.writeObject(new PersistentLogEntry(0, name, e.getKey(), null));
+                            }
+                            poObj.reset();
+                        }
+                    }
+                }
+                poObj.writeObject(null);
                 poObj.flush();
                 poZip.finish();
                 poZip.flush();
                 poFD.sync();
-                lock.release();
                 poFile.close();
                 
+                int seq = segments.isEmpty() ? 1 : sequenceOf(segments.get(segments.size() - 1)) + 1;
+                File seg = new File(libDir, segmentName(full ? IMAGENAME : SEGMENTNAME, seq));
+                Files.move(tmp.toPath(), seg.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (full) {
+                    // the new image holds everything - the older files can go
+                    for (File old : segments) {
+                        old.delete();
+                    }
+                    segments.clear();
+                    lib.delete();
+                    legacyImage = false;
+                    damaged = false;
+                }
+                for (File old : stale) {
+                    old.delete();
+                }
+                stale.clear();
+                segments.add(seg);
+                dirty.clear();
+                
+                lock.release();
                 lock.close();
                 
 //                flusher.shutDown();  
@@ -172,13 +314,78 @@ class PersistentLibrary {
                 
         return;
     }
+    
+    /**
+     * Gives up the library directory, without saving anything, after a start that failed.
+     */
+    synchronized void release() {
+        
+        try {
+            lock.release();
+            lock.close();
+        } catch (IOException ioe) {
+            System.err.println ("Problem releasing library lock: " + ioe);
+        }
+    }
+    
+    /**
+     * Returns the library segment and full image files in the library directory, in
+     * ascending sequence.
+     */
+    private List<File> listSegments() {
+        
+        File[] files = libDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENTNAME) || name.startsWith(IMAGENAME);
+            }
+        });
+        List<File> rv = new ArrayList<File>();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Integer.compare(sequenceOf(a), sequenceOf(b));
+                }
+            });
+            rv.addAll(Arrays.asList(files));
+        }
+        return rv;
+    }
+    
+    private static String segmentName(String root, int seq) {
+        String num = Integer.toString(seq);
+        return root + "0000000000".substring(num.length()) + num;
+    }
+    
+    private static boolean isImage(File seg) {
+        return seg.getName().startsWith(IMAGENAME);
+    }
+    
+    private static int sequenceOf(File seg) {
+        return Integer.parseInt(seg.getName().substring(isImage(seg) ? IMAGENAME.length() : SEGMENTNAME.length()));
+    }
+    
+    /**
+     * Records that the argument object has changed since the library was last saved.
+     */
+    private void markDirty(Class<?> pClass, String name) {
+        
+        Set<String> names = dirty.get(pClass);
+        if (names == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            if ((names = dirty.putIfAbsent(pClass, created)) == null) {
+                names = created;
+            }
+        }
+        names.add(name);
+    }
 
     /**
      * Apply the parameter List of Persistent objects to the library.  Any that are now null are deleted from the library.  All are passed to the PersistentFlusher for the next checkpoint. 
      */
-    synchronized void processDeletions(java.util.List<PersistentLogEntry> changed) {
+    void processDeletions(java.util.List<PersistentLogEntry> changed) {
        
         for (PersistentLogEntry pdi : changed) {
+        	markDirty(pdi.getPersistentClass(), pdi.getName());
         	if (pdi.isNull()) {
         		removePersistent(pdi);
         	}
@@ -186,53 +393,82 @@ class PersistentLibrary {
     }
     
     /**
-     * remove the Persistent Object derived from the parameter LogEntry from the library. 
+     * remove the Persistent Object derived from the parameter LogEntry from the library.
+     * The object is only removed if it is still deleted and not under the control of a
+     * transaction - one that took control since the deletion may be about to give it a value.
+     * A removed object is retired, so that a transaction that looked it up before the removal
+     * will look it up again rather than use it. 
      */
-    private synchronized void removePersistent(PersistentLogEntry victim) {
+    private void removePersistent(PersistentLogEntry victim) {
         
-        Map<String, Persistent> mapForClass;
-        Class<?> vClass = victim.getPersistentClass();
+        ConcurrentHashMap<String, Persistent> mapForClass;
+        Persistent p;
         
-        if ((mapForClass = classLibrary.get(vClass)) != null) {
-            mapForClass.remove(victim.getName());
-
-            if (mapForClass.isEmpty()) {
-                classLibrary.remove(vClass);
-            }
-                
+        if ((mapForClass = classLibrary.get(victim.getPersistentClass())) != null &&
+            (p = mapForClass.get(victim.getName())) != null &&
+            p.retireIfDeleted()) {
+            mapForClass.remove(victim.getName(), p);
         }
     }
 
     /**
      * Return the Persistent object specified by the arguments.  If none matches, return null. 
      */
-    synchronized Persistent read(String name, Class<?> type) {
+    Persistent read(String name, Class<?> type) {
         
-        Map<?, ?> mapForClass;
+        Map<String, Persistent> mapForClass;
         
         if ((mapForClass = classLibrary.get(type)) != null) {
-            return ((Persistent) mapForClass.get(name));
+            return mapForClass.get(name);
         }
         
         return null;
     }
 
+    /**
+     * Return the Persistent object specified by the arguments, atomically creating an empty one
+     * if none exists.  Concurrent callers for the same key all get the same object.
+     */
+    Persistent getOrCreate(String name, Class<?> type) {
+        
+        ConcurrentHashMap<String, Persistent> mapForClass = classMap(type);
+        Persistent p = mapForClass.get(name);
+        
+        if (p == null) {
+            Persistent created = Persistent.persistentFactory(name, type);
+            if ((p = mapForClass.putIfAbsent(name, created)) == null) {
+                p = created;
+                markDirty(type, name);
+            }
+        }
+        return p;
+    }
+
     /**
      * Store the argument Persistent Object in the library.
      * NOTE - this will silently replace any existing Persistent object of the same name and class. 
      */
-    synchronized void addTo(Persistent item) throws PersistException {
+    void addTo(Persistent item) throws PersistException {
         
-        Class<?> pClass;
-        Map<String, Persistent> libForClass;
+        classMap(item.getPersistentClass()).put (item.getName(), item);
+        markDirty(item.getPersistentClass(), item.getName());
+    }
+    
+    /**
+     * Returns the map of names to Persistent objects for the argument class, creating it if necessary.
+     * Maps are never removed once created, so an object is never put into a map that has been dropped.
+     */
+    private ConcurrentHashMap<String, Persistent> classMap(Class<?> pClass) {
         
-        if (!classLibrary.containsKey(pClass = item.getPersistentClass())) {
-            classLibrary.put (pClass, (libForClass = new HashMap<String, Persistent>()));
-        } else {
-            libForClass = classLibrary.get(pClass);
-        }
+        ConcurrentHashMap<String, Persistent> libForClass = classLibrary.get(pClass);
         
-        libForClass.put (item.getName(), item);
+        if (libForClass == null) {
+            ConcurrentHashMap<String, Persistent> created = new ConcurrentHashMap<String, Persistent>();
+            if ((libForClass = classLibrary.putIfAbsent(pClass, created)) == null) {
+                libForClass = created;
+            }
+        }
+        return libForClass;
     }
     
     /**
@@ -251,21 +487,34 @@ class PersistentLibrary {
      * library.  The order of the names is not defined.
      * NO GUARANTEE THAT ANY OF THESE KEYS IS STILL PRESENT WHEN YOU COME TO USE IT.
      */
-    synchronized Map<Class<?>, LinkedList<String>> getAllKeys() {
+    Map<Class<?>, LinkedList<String>> getAllKeys() {
       
         
         Map<Class<?>, LinkedList<String>> rv = new HashMap<Class<?>, LinkedList<String>>();
         
-        for (Class<?> cls : classLibrary.keySet()) {
+        for (Map.Entry<Class<?>, ConcurrentHashMap<String, Persistent>> e : classLibrary.entrySet()) {
                  
-                 rv.put (cls, new LinkedList<String>(classLibrary.get(cls).keySet()));
+                 if (!e.getValue().isEmpty()) {
+                     rv.put (e.getKey(), new LinkedList<String>(e.getValue().keySet()));
+                 }
         }
         return rv;                 
     }
 
 
+    private static final String SEGMENTNAME = "LibSeg";
+    private static final String IMAGENAME = "LibImg"; // a full image, superseding every older file
+    private static final String SEGMENT_TMPNAME = "LibTmp";
+    private static final int MAX_SEGMENTS = 8;
+
     private String libName;
+    private File libDir;
+    private List<File> segments;
+    private List<File> stale;
+    private boolean damaged;
+    private ConcurrentHashMap<Class<?>, Set<String>> dirty;
+    private boolean legacyImage;
     private java.io.File lib;
     private FileLock lock;
-    private HashMap<Class<?>, Map<String, Persistent>> classLibrary;
+    private ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Persistent>> classLibrary;
 }
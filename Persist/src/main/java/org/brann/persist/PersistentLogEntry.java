@@ -32,8 +32,9 @@ package org.brann.persist;
 
 import java.io.Serializable;
 
-@SuppressWarnings("serial")
 class PersistentLogEntry extends LogEntry {
+
+    private static final long serialVersionUID = 5168016348633458405L; // Version ID to allow de-serialization after change.
     /**
      * Builds a LogEntry representing a Persistent object update. 
      */
@@ -50,6 +51,17 @@ class PersistentLogEntry extends LogEntry {
 
     public PersistentLogEntry() {
     }
+
+    /**
+     * Rebuilds a LogEntry representing a Persistent object update read back from the transaction log.
+     */
+    PersistentLogEntry(long tranID, String name, Class<?> pClass, Serializable value) {
+
+        this.transactionID = tranID;
+        this.name = name;
+        this.pdiClass = pClass;
+        this.value = value;
+    }
     
     /**
      * getter for the name of the Persistent object in this LogEntry.  If this LogEntry is an 
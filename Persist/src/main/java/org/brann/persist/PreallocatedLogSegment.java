@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Log segment written, by position, into a file whose full size was allocated (and
+ * synchronized) before the segment was put into use.  Since the file's size does not
+ * change while records are written, sync() only needs to force the data.
+ * Unwritten space in the file is zero, which a LogFormat.Reader treats as the end of the records.
+ */
+class PreallocatedLogSegment implements LogSegment {
+
+    /**
+     * Creates the argument file, filled with the argument number of zero bytes, and forces
+     * both its content and its size to disk.  Intended to run off the commit path.
+     */
+    static void preallocate(File f, long capacity) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+            long pos = 0;
+            while (pos < capacity) {
+                zeros.clear();
+                if (capacity - pos < ZERO_CHUNK) {
+                    zeros.limit((int) (capacity - pos));
+                }
+                pos += ch.write(zeros, pos);
+            }
+            ch.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens a file previously built by preallocate() for writing from its start.
+     */
+    PreallocatedLogSegment(File f) throws IOException {
+        file = f;
+        raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        capacity = raf.length();
+        staging = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        position = 0;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!staging.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(len, staging.remaining());
+            staging.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void flush() throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            position += channel.write(staging, position);
+        }
+        staging.clear();
+    }
+
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public long size() {
+        return position + staging.position();
+    }
+
+    public boolean hasRoom(int len) {
+        return size() + len <= capacity;
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        raf.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int ZERO_CHUNK = 65536;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long capacity;
+    private final ByteBuffer staging;
+    private long position;
+}
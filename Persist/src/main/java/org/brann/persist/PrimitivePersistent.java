@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package org.brann.persist;
+
+import java.io.Serializable;
+
+/**
+ * Persistent for Long, Integer and Double values - counters and sequences.  The wrappers are
+ * immutable, so the value is held and handed out as-is, never copied or serialized, and it
+ * is logged as a fixed-width number.
+ * A value frozen by the ValueStore (by a release that held these classes in a 
+ * SerializedPersistent) is thawed once, when first read.
+ */
+class PrimitivePersistent extends Persistent {
+
+    private static final long serialVersionUID = -2650416418716381455L; // Version ID to allow de-serialization after change.
+
+    /** recreate a Persistent from a Transaction LogEntry.  Used during start-up to roll-forward the log.
+     */
+    PrimitivePersistent(PersistentLogEntry pdi) {
+        super(pdi);
+    }
+    
+    /** Build a new empty Persistent
+     */
+    PrimitivePersistent(String name, Class<?> type) {
+        super(name,type);
+    }
+    
+    protected Serializable obtainValue(Serializable val) throws PersistException {
+        if (val instanceof byte[]) {
+            return ValueStore.getInstance().retrieve((byte[])val);
+        }
+        return val;
+    }
+    
+    protected Serializable storeValue(Serializable val) throws PersistException {
+        return val;
+    }
+
+    /**
+     * Returns true if the argument class is held in a PrimitivePersistent.
+     */
+    static boolean isPrimitive(Class<?> pClass) {
+        return pClass == Long.class || pClass == Integer.class || pClass == Double.class;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+/**
+ * Decides when the transaction log should be rolled.  Used only by the log writer thread.
+ * A log file is rolled once it reaches the target segment size or, if a roll interval is
+ * configured, once it is older than the interval.  In adaptive mode the target size is
+ * recalculated at every roll from the rate at which log was written, smoothed over
+ * recent rolls, so that rolls occur about once per roll interval.
+ */
+class RollPolicy {
+
+    RollPolicy(PersistConfig config) {
+        this.config = config;
+        target = config.getSegmentSize();
+        segmentStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if a log file of the argument size should now be rolled.
+     */
+    boolean shouldRoll(long size) {
+
+        if (size > getSegmentTarget()) {
+            return true;
+        }
+        long interval = config.getRollInterval();
+        return interval > 0 &&
+               size > LogFormat.HEADER_SIZE &&
+               System.currentTimeMillis() - segmentStart >= interval;
+    }
+
+    /**
+     * Records that a log file of the argument size has just been rolled, and recalculates
+     * the target size if rolling adaptively.
+     */
+    void rolled(long size) {
+
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1L, now - segmentStart);
+        long interval = config.getRollInterval();
+        segmentStart = now;
+
+        if (config.isAdaptiveRoll() && interval > 0 && size > LogFormat.HEADER_SIZE) {
+            double bytesPerMs = (double) size / elapsed;
+            double wanted = bytesPerMs * interval;
+            double smoothed = (target == 0) ? wanted : (target * (1.0 - SMOOTHING)) + (wanted * SMOOTHING);
+            target = Math.max(config.getMinSegmentSize(),
+                              Math.min(config.getMaxSegmentSize(), (long) smoothed));
+        }
+    }
+
+    /**
+     * Returns the size at which the current log file will be rolled.
+     */
+    long getSegmentTarget() {
+        return config.isAdaptiveRoll() ? target : config.getSegmentSize();
+    }
+
+    /**
+     * Returns the size to preallocate for a log file: room beyond the roll target for
+     * the commits written while a roll is pending.
+     */
+    long getSegmentCapacity() {
+        return 2 * getSegmentTarget();
+    }
+
+    private static final double SMOOTHING = 0.5;
+
+    private final PersistConfig config;
+    private long target;
+    private long segmentStart;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package org.brann.persist;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the commit sequence of the multi-version (MVCC) mode, and the start sequences of the
+ * open snapshot transactions.  Committing transactions publish their new values with the
+ * registry's lock held, so a snapshot opened at sequence n sees every commit up to n
+ * complete, and none after it.
+ * Persistent objects holding versions older than their committed value are tracked, so that
+ * the versions can be dropped as soon as the oldest snapshot that needs them is closed.
+ */
+class SnapshotRegistry {
+
+    /**
+     * Opens a snapshot as of the latest published commit, and returns its sequence.
+     */
+    long open() {
+        lock.lock();
+        try {
+            Integer count = openSnapshots.get(seq);
+            openSnapshots.put(seq, (count == null) ? 1 : count + 1);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes a snapshot opened at the argument sequence, dropping any versions that no
+     * remaining snapshot can read.
+     */
+    void close(long snapshot) {
+        lock.lock();
+        try {
+            Integer count = openSnapshots.get(snapshot);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                openSnapshots.put(snapshot, count - 1);
+            } else {
+                openSnapshots.remove(snapshot);
+                long oldest = oldest();
+                for (Iterator<Persistent> it = versioned.iterator(); it.hasNext();) {
+                    if (!it.next().pruneVersions(oldest)) {
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the registry's lock and returns the sequence of the next commit.  The caller puts
+     * the commit's values in place, then calls endPublish().
+     */
+    long publish() {
+        lock.lock();
+        return ++seq;
+    }
+
+    /**
+     * Releases the lock taken by publish().
+     */
+    void endPublish() {
+        lock.unlock();
+    }
+
+    /**
+     * Returns the start sequence of the oldest open snapshot, or Long.MAX_VALUE if there is none.
+     */
+    long oldest() {
+        lock.lock();
+        try {
+            return openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the argument Persistent holds old versions.
+     */
+    void track(Persistent p) {
+        lock.lock();
+        try {
+            versioned.add(p);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long seq = 0L;
+    private TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+    private Set<Persistent> versioned = Collections.newSetFromMap(new IdentityHashMap<Persistent, Boolean>());
+}
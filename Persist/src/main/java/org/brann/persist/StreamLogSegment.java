@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Log segment that grows by appending through a buffered stream.  Every sync() has to
+ * write the file's size as well as its data.
+ */
+class StreamLogSegment implements LogSegment {
+
+    StreamLogSegment(File f) throws IOException {
+        file = f;
+        raf = new RandomAccessFile(f, "rw");
+        fd = raf.getFD();
+        out = new BufferedOutputStream(new FileOutputStream(fd), BUFFER_SIZE);
+        size = 0;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        size += len;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void sync() throws IOException {
+        fd.sync();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean hasRoom(int len) {
+        return true;
+    }
+
+    public void close() throws IOException {
+        out.close();
+        raf.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileDescriptor fd;
+    private final BufferedOutputStream out;
+    private long size;
+}
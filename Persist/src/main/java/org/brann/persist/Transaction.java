@@ -37,8 +37,15 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.TreeMap;
 import java.util.Iterator;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Control point for a set of actions on Persistent objects.  Allows those actions to be committed or rolled back as a unit. 
@@ -49,6 +56,7 @@ class Transaction {
      */
     Transaction(TransactionHandle requester) {
         persistents = new HashMap<Object, Persistent>();
+        accesses = new TreeMap<Object, Access>();
         toLibrary = new LinkedList<PersistentLogEntry>();
         tm = TransactionMgr.getInstance();
         logger = tm.getLogger();
@@ -72,24 +80,28 @@ class Transaction {
         
         boolean mustRollBack = false;
     
-        synchronized (this) {
+        stateLock.lock();
+        try {
             if (!committed &&
                 !rolledBack) {
                 rolledBack = true;
 
-                logger.logRollBack(this);
+                if (!readOnly) {
+                    logger.logRollBack(this);
+                }
                 mustRollBack = true;
             }
+        } finally {
+            stateLock.unlock();
         }
             
         if (mustRollBack) {
+            closeSnapshot();
             for (Persistent p : persistents.values()) {
                 
                 p.rollBack(this);
             }
-            synchronized (this) {
-                notifyAll();
-            }
+            // waiters for the Persistents were woken as each was handed on - no notify needed
             tm.removeXaction(this);
         }
     }
@@ -98,7 +110,7 @@ class Transaction {
      * Implement two-phase commit protocol for persistent objects.
      * Phase 1 validates the transaction for each affected Persistent
      * and prepares for commit.  After a successful phase 1, log entries are 
-     * written for all the modified Persistents and the commit, followed by phase 2 
+     * written (as a single unit) for all the modified Persistents and the commit, followed by phase 2 
      * which changes the value
      *  and removes the transaction from each of the Persistents.
      * A failed phase 1 triggers a roll-back.
@@ -106,12 +118,73 @@ class Transaction {
     
     void commit() throws PersistException {
         
+        if (prepareCommit()) {
+            // Log changes and commit - check that we haven't been killed while committing.
+            completeCommit(!killed && logger.logCommit(this, toLibrary));
+        }
+    }
+    
+    /**
+     * As commit(), but does not wait for the log write: returns a future that completes once
+     * the commit is logged (and synchronized, according to the sync policy) and phase 2 is done,
+     * or completes exceptionally with the PersistException commit() would have thrown (or any
+     * other failure of phase 2).  Phase 2 runs on the engine's commit executor, never on the
+     * log writer, which would stall the log for every other transaction.
+     */
+    CompletableFuture<Void> commitAsync() {
+        
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        try {
+            if (!prepareCommit()) {
+                result.complete(null);
+                return result;
+            }
+        } catch (PersistException pe) {
+            result.completeExceptionally(pe);
+            return result;
+        }
+        CompletableFuture<Boolean> logged = killed ? CompletableFuture.completedFuture(Boolean.FALSE)
+                                                   : logger.logCommitAsync(this, toLibrary);
+        logged.whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean ok, Throwable failure) {
+                try {
+                    completeCommit(failure == null && ok.booleanValue());
+                    result.complete(null);
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        }, tm.getCommitExecutor());
+        return result;
+    }
+    
+    /**
+     * Validates the transaction and performs phase 1 of the commit, collecting the log entries
+     * to be written in toLibrary.  Returns true if the commit must go on to be logged, or false
+     * if it is already complete (a read-only transaction).  On failure rolls back and throws a
+     * PersistException.
+     */
+    private boolean prepareCommit() throws PersistException {
+        
         PersistentLogEntry wkDI;
         toLibrary.clear();
         
         if (!isAlive()) {
             rollBack();
             throw new PersistException("Transaction Rolled back before commit");
+        }
+        if (optimistic) {
+            takeControlAndValidate();
+        }
+        if (readOnly) {
+            // nothing to validate or log - just release the shared locks
+            committed = true;
+            closeSnapshot();
+            for (Persistent wk : persistents.values()) {
+                wk.releaseShared(this);
+            }
+            tm.removeXaction(this);
+            return false;
         } else {
             @SuppressWarnings("unused")
 			long TimeStamp = System.currentTimeMillis();
@@ -133,17 +206,42 @@ class Transaction {
                 }
             }
         }
-        // Log commit - check that we haven't been killed while committing.
-        if (!killed && logger.logCommit(this)) {
+        return true;
+    }
+    
+    /**
+     * Completes a commit whose log write succeeded (logged is true) with phase 2, or, if the
+     * write failed, rolls back and throws a PersistException. 
+     */
+    private void completeCommit(boolean logged) throws PersistException {
+        
+        if (logged) {
             
             committed = true;
             // at this point the transaction is committed and fully logged.  
             // A restart or recovery from disk will include it.
             // The persistent Objects in memory need all to be updated to reflect the commit
             
-            for (Persistent wk : persistents.values()) {
-            
-                wk.commitPhase2(this);
+            SnapshotRegistry versions = tm.getSnapshots();
+            if (versions == null) {
+                for (Persistent wk : persistents.values()) {
+                
+                    wk.commitPhase2(this);
+                }
+            } else {
+                // publish all the new values under one commit sequence, atomically for snapshots
+                long seq = versions.publish();
+                try {
+                    long oldest = versions.oldest();
+                    for (Persistent wk : persistents.values()) {
+                    
+                        if (wk.commitPhase2(this, seq, oldest)) {
+                            versions.track(wk);
+                        }
+                    }
+                } finally {
+                    versions.endPublish();
+                }
             }
         
             // Tell the library which persistents were updated
@@ -151,16 +249,11 @@ class Transaction {
                 tm.changesCommitted(toLibrary);
             }
             // remove blocks caused by this transaction
-            // this may also trigger a checkPoint()
             tm.removeXaction(this);
         } else {
             rollBack();
             throw new PersistException("Commit failed to write log");
         }
-/*        synchronized (this) {
-            // wake up any threads waiting on termination of this transaction
-            notifyAll();
-        } */
         return;
     }
     
@@ -173,11 +266,13 @@ class Transaction {
     }
     
     /**
-     * Wakes all Threads that are waiting on this Transaction. 
+     * Wakes the Thread of this Transaction if it is waiting for control of a Persistent. 
      */
-    synchronized void wake() {
-        //unblock any waiting threads
-        notifyAll();
+    void wake() {
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
     }
     
     /**
@@ -187,6 +282,41 @@ class Transaction {
         return (persistents.size());
     }
     
+    /**
+     * Returns the number of get and set operations performed by this Transaction - a measure
+     * of the work lost if it is rolled back. 
+     */
+    int getOperations() {
+        return operations;
+    }
+    
+    /**
+     * Returns the longest time, in milliseconds, this Transaction waits for control of a
+     * Persistent - its owner's lock timeout if set, otherwise the engine's.  0 means no limit. 
+     */
+    long getLockTimeout() {
+        long timeout = owner.getLockTimeout();
+        if (timeout < 0) {
+            PersistConfig config = tm.getConfig();
+            timeout = (config == null) ? 0L : config.getLockTimeout();
+        }
+        return timeout;
+    }
+    
+    /**
+     * Returns the Persistent this Transaction is queued for, or null if it is not waiting. 
+     */
+    Persistent getWaitingFor() {
+        return waitingFor;
+    }
+    
+    /**
+     * Returns true if this Transaction only reads, taking shared control of the Persistents it reads. 
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+    
     /**
      * If this Transaction is active (NOT rolled-back, committed or killed), returns true, 
      * otherwise returns false. 
@@ -196,7 +326,7 @@ class Transaction {
     }
     
     /**
-     * Returns the arbitrary, unique ID of this transaction.  (Debugging use only) 
+     * Returns the arbitrary, unique ID of this transaction, renewed each time it is recycled. 
      */
     long getID() {
         return Id;
@@ -205,7 +335,7 @@ class Transaction {
     /**
      * Add the parameter Persistent object to the control of this Transaction. 
      */
-    synchronized void addPersistent(Persistent p) {
+    void addPersistent(Persistent p) {
         
         persistents.put(p.getKey(), p);
     }
@@ -227,9 +357,36 @@ class Transaction {
      */
     void setPstValue(String name, Class<?> pClass, java.io.Serializable value) throws PersistException {
         
-        Persistent p = takeControl(name, pClass, false);
+        setPstValue(name, pClass, value, false);
+    }
+    
+    /**
+     * As setPstValue(name, pClass, value), except that if tryOnly is true and another Transaction
+     * controls the Persistent object, returns false at once, leaving this Transaction unaffected.
+     * Returns true if the value was set. 
+     */
+    boolean setPstValue(String name, Class<?> pClass, java.io.Serializable value, boolean tryOnly) throws PersistException {
+        
+        if (readOnly) {
+            rollBack();
+            throw new PersistException("Set in read-only transaction.");
+        }
+        if (optimistic) {
+            setOptimisticValue(name, pClass, value);
+            return true;
+        }
+        Persistent p;
+        try {
+            p = takeControl(name, pClass, false, tryOnly);
+        } catch (LockTimeoutException busy) {
+            if (tryOnly && isAlive()) {
+                return false;
+            }
+            throw busy;
+        }
 
         p.set (this, value);
+        return true;
     }
     
     /**
@@ -243,26 +400,151 @@ class Transaction {
      */
     Serializable getPstValue(String name, Class<?> pClass) throws PersistException {
         
-        Persistent p = takeControl(name, pClass, false);
+        return getPstValue(name, pClass, false);
+    }
+    
+    /**
+     * As getPstValue(name, pClass), except that if tryOnly is true and another Transaction
+     * controls the Persistent object, throws a LockTimeoutException at once, leaving this
+     * Transaction unaffected. 
+     */
+    Serializable getPstValue(String name, Class<?> pClass, boolean tryOnly) throws PersistException {
+        
+        if (snapshots != null) {
+            return getSnapshotValue(name, pClass);
+        }
+        if (optimistic) {
+            return getOptimisticValue(name, pClass);
+        }
+        Persistent p = takeControl(name, pClass, readOnly, tryOnly);
+        if (p == null) {
+            // read-only transactions do not create Persistents
+            return null;
+        }
 
         return p.getValue(this);
     }
     
+    /**
+     * Return the value of the Persistent identified by the name and pClass parameters as committed
+     * when this snapshot transaction started, or null if it did not exist.  Never blocks.
+     */
+    private Serializable getSnapshotValue(String name, Class<?> pClass) throws PersistException {
+        
+        if (!isAlive()) {
+            rollBack();
+            throw new PersistException("Transaction Killed.");
+        }
+        ++operations;
+        Persistent p = tm.getExistingPersistent(name, pClass);
+        while (p != null &&
+               p.isRetired()) {
+            // deleted and removed from the library since we looked - look it up again
+            p = tm.getExistingPersistent(name, pClass);
+        }
+        return (p == null) ? null : p.getSnapshotValue(snapshotSeq);
+    }
+    
+    /**
+     * Return the value of the Persistent identified by the name and pClass parameters as
+     * written or first read by this optimistic transaction, recording the version read.
+     * Takes no control of the object.
+     */
+    private Serializable getOptimisticValue(String name, Class<?> pClass) throws PersistException {
+        
+        if (!isAlive()) {
+            rollBack();
+            throw new PersistException("Transaction Killed.");
+        }
+        ++operations;
+        Object key = Persistent.makeKey(name, pClass);
+        Access a = accesses.get(key);
+        if (a == null) {
+            a = new Access(name, pClass);
+            a.read = tm.getPersistent(name, pClass);
+            // version before value - a commit in between fails validation, it cannot be missed
+            a.version = a.read.getVersion();
+            a.value = a.read.getCommittedValue();
+            accesses.put(key, a);
+        }
+        return a.value;
+    }
+    
+    /**
+     * Buffer the value of the Persistent identified by the name and pClass parameters in this
+     * optimistic transaction, to be installed at commit.
+     */
+    private void setOptimisticValue(String name, Class<?> pClass, Serializable value) throws PersistException {
+        
+        if (!isAlive()) {
+            rollBack();
+            throw new PersistException("Transaction Killed.");
+        }
+        if (!Persistent.isValueOf(pClass, value)) {
+            rollBack();
+            throw new PersistException("Attempt to change class of Persistent");
+        }
+        ++operations;
+        Object key = Persistent.makeKey(name, pClass);
+        Access a = accesses.get(key);
+        if (a == null) {
+            a = new Access(name, pClass);
+            accesses.put(key, a);
+        }
+        a.written = true;
+        a.value = value;
+    }
+    
+    /**
+     * First step of the commit of an optimistic transaction: takes control of every object it
+     * read or wrote, in key order (so optimistic commits cannot deadlock with each other), 
+     * checks that none it read has changed since, and sets the buffered values.  The normal
+     * two-phase commit then installs them.
+     * On a conflict rolls back and throws an OptimisticConflictException.
+     */
+    private void takeControlAndValidate() throws PersistException {
+        
+        for (Access a : accesses.values()) {
+            Persistent p = takeControl(a.name, a.pClass, false, false);
+            if (a.read != null &&
+                (a.read != p || a.version != p.getVersion())) {
+                rollBack();
+                throw new OptimisticConflictException("Commit conflict on " + a.name);
+            }
+            if (a.written) {
+                p.set(this, a.value);
+            }
+        }
+    }
+    
+    /**
+     * If this is a snapshot transaction, lets the versions it could read be reclaimed. 
+     */
+    private void closeSnapshot() {
+        if (snapshots != null) {
+            snapshots.close(snapshotSeq);
+            snapshots = null;
+        }
+    }
+    
     /**
      * Obtain control of the Persistent object specified by the name and pClass parameters. 
      * If another Transaction has control of the specified object, blocks until the Persistent
      * object becomes available.
      * If this transaction is killed in deadlock resolution, performs a roll-back and throws a
-     * PersistException.
+     * PersistException.  If the wait exceeds the lock timeout, performs a roll-back and throws
+     * a LockTimeoutException.  If tryOnly is true, does not wait at all: throws a 
+     * LockTimeoutException without rolling back.
      * If the existing parameter is true and the specified Persistent object does not exist, does
      * nothing and returns null.
      * If existing is false the specified Persistent object will be created if it does not exist. 
      */
-    private Persistent takeControl(String name, Class<?> pClass, boolean existing) throws PersistException {
-        Transaction current = null;
+    private Persistent takeControl(String name, Class<?> pClass, boolean existing, boolean tryOnly) throws PersistException {
         Persistent p = null;        
         Object key = Persistent.makeKey(name, pClass);
+        boolean timedOut = false;
         
+        ++operations;
         if (isAlive()) {
         
             // if we already have the Persistent in our Map, we already own it...
@@ -277,35 +559,67 @@ class Transaction {
             }
                     // Note - if the persistent exisits at this point (even if deleted
                     // before we take control of it) getExisting... will return it.
-            for (;
-                 isAlive() &&
-                 p != null &&
-                 (current = p.giveControl(this)) != this;
-                 p = tm.getPersistent(name, pClass)) { 
-                   // NOTE - re-get the persistent from the library in case of deletion.
-                    synchronized (this) {
-                        try {
-                            if (tm.addBlock(this, current)) {
-                                this.wait();
-                            } else {
-                                this.wait (5); // the current owner is being cleaned up, 
-                                               // wait to try again.
-                            }
-                        } catch (InterruptedException ie) {
-                        //don't care
+            waiter = Thread.currentThread();
+            while (isAlive() &&
+                   p != null &&
+                   !p.giveControl(this, readOnly)) {
+                
+                if (p.isRetired()) {
+                    // retired - deleted and removed from the library; look it up again
+                    p = existing ? tm.getExistingPersistent(name, pClass) : tm.getPersistent(name, pClass);
+                    continue;
+                }
+                if (tryOnly) {
+                    timedOut = true;
+                    break;
+                }
+                // we are queued on p - we now wait for its controller (this may complete a
+                // deadlock), and sleep until control is handed to us, we are killed or we time out
+                waitingFor = p;
+                tm.addBlock(this);
+                long timeout = getLockTimeout();
+                long started = System.nanoTime();
+                while (isAlive() &&
+                       !p.isHeldBy(this)) {
+                    if (timeout == 0) {
+                        LockSupport.park(this);
+                    } else {
+                        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - started);
+                        if (remaining <= 0) {
+                            timedOut = true;
+                            break;
                         }
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                }
+                if (timedOut) {
+                    break;
+                }
+            }
+            waitingFor = null;
+            if (p != null) {
+                if (timedOut && p.isHeldBy(this)) {
+                    timedOut = false; // handed control as the wait ran out
+                }
+                if (isAlive() && !timedOut) {
+                    persistents.put (p.getKey(), p);
+                } else {
+                    p.cancelWait(this);
                 }
             }
-            if (p != null &&
-                isAlive()) {
-                persistents.put (p.getKey(), p);
-            }            
         }
         
         if (!isAlive()) {
             rollBack();
             throw new PersistException("Transaction Killed.");
         }
+        if (timedOut) {
+            if (tryOnly) {
+                throw new LockTimeoutException("Persistent busy: " + name);
+            }
+            rollBack();
+            throw new LockTimeoutException("Lock wait timed out: " + name);
+        }
         return p;
     }
                             
@@ -319,37 +633,83 @@ class Transaction {
     throws PersistException {
         Persistent p;
         
-        if ((p = takeControl(name, pClass, true)) == null) {
+        if ((p = takeControl(name, pClass, true, false)) == null) {
             throw new PersistException ("No such Persistent exists.");
         }
 
         return p.getValue(this);
+    }
+
+    /**
+     * As getExistingPstValue(), except that if no Persistent object exists identified by the
+     * parameters, returns null - without creating one, and holding nothing.
+     * Snapshot and optimistic transactions read as getPstValue().
+     */
+    Serializable findPstValue(String name, Class<?> pClass) throws PersistException {
+
+        if (snapshots != null || optimistic) {
+            return getPstValue(name, pClass);
+        }
+        Persistent p = takeControl(name, pClass, true, false);
+        return (p == null) ? null : p.getValue(this);
     }    
     
     void recycle(TransactionHandle newOwner) {
     
         owner = newOwner;
+        readOnly = newOwner.isReadOnly();
+        optimistic = newOwner.isOptimistic();
+        accesses.clear();
+        snapshots = newOwner.isSnapshot() ? tm.getSnapshots() : null;
+        if (snapshots != null) {
+            snapshotSeq = snapshots.open();
+        }
         killed = false;
         committed = false;
         rolledBack = false;
         persistents.clear();
+        operations = 0;
         created = new Date();
-        synchronized (this.getClass()) {
-            Id = idSrc++;
-        }
+        Id = idSrc.getAndIncrement();
     }
     
-    private static long idSrc = 0;
+    private static final AtomicLong idSrc = new AtomicLong();
     
     private TransactionMgr tm;
-    @SuppressWarnings("unused")
-	private TransactionHandle owner;
-    private boolean killed;
-    private boolean committed;
-    private boolean rolledBack;
+    private TransactionHandle owner;
+    private final ReentrantLock stateLock = new ReentrantLock(); // guards the move to rolled-back
+    private boolean readOnly;
+    private boolean optimistic;
+    private Map<Object, Access> accesses; // optimistic reads and writes, in key order
+    private SnapshotRegistry snapshots; // non-null while this is an open snapshot transaction
+    private long snapshotSeq;
+    // set by the deadlock detector, the roll back thread and commit completion, read by waiters
+    private volatile boolean killed;
+    private volatile boolean committed;
+    private volatile boolean rolledBack;
     private Map<Object, Persistent> persistents;
     private Date created;
-    private long Id;
+    private volatile Persistent waitingFor;
+    private volatile Thread waiter; // thread that last sought control of a Persistent for this transaction
+    private volatile int operations;
+    private volatile long Id; // read by the deadlock detector on other threads
     private TransactionLog logger;
     private List<PersistentLogEntry> toLibrary;
+    
+    /**
+     * An object read or written by an optimistic transaction: the Persistent and version read
+     * (null if not read), and the value read or buffered.
+     */
+    private static class Access {
+        Access(String name, Class<?> pClass) {
+            this.name = name;
+            this.pClass = pClass;
+        }
+        final String name;
+        final Class<?> pClass;
+        Persistent read;
+        long version;
+        boolean written;
+        Serializable value;
+    }
 }
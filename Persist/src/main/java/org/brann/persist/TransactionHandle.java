@@ -32,6 +32,10 @@
 package org.brann.persist;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 
 /**
  * Represents a client's connection to the persistence engine.  Created by the 
@@ -51,6 +55,56 @@ public class TransactionHandle {
     private TransactionHandle() {
     }
 
+    /**
+     * Getter for property readOnly.  A read-only TransactionHandle's transactions take shared
+     * control of the Persistent objects they read, so any number of them can read the same 
+     * object at once; they cannot set values, and their commits write nothing to the log.
+     * @return Value of property readOnly.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Getter for property lockTimeout.
+     * @return The longest time, in milliseconds, this handle's transactions wait for control of a
+     * Persistent before being rolled back with a LockTimeoutException.  0 means no limit; a
+     * negative value (the default) means the engine's lock timeout applies.
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * Setter for property lockTimeout.
+     * @param lockTimeout New value of property lockTimeout.
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Getter for property optimistic.  An optimistic TransactionHandle's transactions take no
+     * control of the objects they use until commit: reads record the version they saw and 
+     * writes are buffered.  commit() takes control of them all, and installs the writes only if
+     * nothing read has been changed since; otherwise it rolls back and throws an
+     * OptimisticConflictException.  Suited to work on mostly disjoint sets of objects.
+     * @return Value of property optimistic.
+     */
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Getter for property snapshot.  A snapshot TransactionHandle is read-only, and its 
+     * transactions read every object as committed when the transaction started, without taking
+     * control of it - they never wait for, or hold up, any other transaction.
+     * @return Value of property snapshot.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
      /**
       * returns the transaction associated with this TransactionHandle.  If there is none when called, obtains a new transaction from the TransactionMgr and makes it current. 
       */
@@ -98,6 +152,25 @@ public class TransactionHandle {
         }
     }
 
+    /**
+     * commit all actions done under the present transaction, as commit(), but without waiting
+     * for the log write.  Returns at once with a future that completes once the commit is 
+     * logged - and synchronized to disk, if the sync policy requires it - and the changes are 
+     * visible to other clients; or completes exceptionally with the PersistException commit()
+     * would have thrown.  Dependent actions that do not specify an executor run on one of the
+     * engine's commit completion threads, and should be brief.
+     * The handle can be used for its next transaction as soon as this method returns.
+     */
+    public CompletableFuture<Void> commitAsync() {
+        
+        if (transaction != null) {
+            Transaction myTr = transaction;
+            transaction = null;
+            return myTr.commitAsync();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Public factory method to provide a TransactionHandle to a requesting client.
      * If the TransactionMgr is not 'UP', returns null. 
@@ -110,6 +183,57 @@ public class TransactionHandle {
             return new TransactionHandle();
         }
     }
+
+    /**
+     * Public factory method to provide a read-only TransactionHandle to a requesting client.
+     * getPstValue() on a read-only handle returns null for an object that does not exist, rather
+     * than creating it; setPstValue() rolls back the transaction and throws a PersistException.
+     * If the TransactionMgr is not 'UP', returns null. 
+     */
+    public static TransactionHandle getReadOnlyTransactionHandle () {
+        return newHandle(true, false, false);
+    }
+
+    /**
+     * Public factory method to provide an optimistic TransactionHandle to a requesting client.
+     * If the TransactionMgr is not 'UP', returns null. 
+     */
+    public static TransactionHandle getOptimisticTransactionHandle () {
+        return newHandle(false, false, true);
+    }
+
+    /**
+     * Public factory method to provide a snapshot TransactionHandle to a requesting client.
+     * Each transaction of the handle starts at its first operation after the previous commit()
+     * or rollBack(), and sees the committed state of that moment until it ends.  Old committed
+     * values are kept only while an open snapshot transaction may read them.
+     * Requires the engine to be started with PersistConfig.setMvcc(true); otherwise throws a
+     * PersistException, rather than return a read-only handle that would wait for writers.
+     * If the TransactionMgr is not 'UP', returns null. 
+     */
+    public static TransactionHandle getSnapshotTransactionHandle () throws PersistException {
+
+        TransactionHandle handle = newHandle(true, true, false);
+        if (handle != null && tManager.getSnapshots() == null) {
+            throw new PersistException ("Snapshot transactions need the engine started with PersistConfig.setMvcc(true).");
+        }
+        return handle;
+    }
+
+    /**
+     * Returns a handle from getTransactionHandle() in the argument modes, or null if the 
+     * TransactionMgr is not 'UP'.
+     */
+    private static TransactionHandle newHandle(boolean readOnly, boolean snapshot, boolean optimistic) {
+
+        TransactionHandle handle = getTransactionHandle();
+        if (handle != null) {
+            handle.readOnly = readOnly;
+            handle.snapshot = snapshot;
+            handle.optimistic = optimistic;
+        }
+        return handle;
+    }
     
     /**
      * Returns the content of the Persistent object specified by the name and class parameters.
@@ -130,6 +254,29 @@ public class TransactionHandle {
             return getPstValue(name, persistClass);
         }
     }
+
+    /**
+     * Returns the content of the Persistent object specified by the name and class parameters,
+     * taking control of it as getExistingPstValue(), or null if no such object exists.  Unlike
+     * getPstValue(), never creates the object; unlike a call to exists() followed by a read,
+     * the object cannot appear or go between the two.
+     */
+    public Serializable findPstValue(String name, Class<?> persistClass) throws PersistException {
+
+        if ((getTransaction()) == null) {
+            throw new PersistException ("Persistence Engine Down.");
+        }
+        
+        Transaction myTr = transaction;
+        try {
+            return myTr.findPstValue(name, persistClass);
+        } catch (PersistException pe) {
+            if (!myTr.isAlive()) {
+                transaction = null;
+            }
+            throw pe;
+        }
+    }
     
     /**
      * Returns the content of the Persistent object specified by the name and class parameters.
@@ -156,6 +303,28 @@ public class TransactionHandle {
         }
     }
     
+    /**
+     * As getPstValue(), but never waits: if a transaction owned by a different TransactionHandle
+     * controls the identified object, throws a LockTimeoutException at once.  The current 
+     * transaction is unaffected, and may go on or be rolled back.
+     */
+    public Serializable tryGetPstValue(String name, Class<?> persistClass) throws PersistException {
+
+        if ((getTransaction()) == null) {
+            throw new PersistException ("Persistence Engine Down.");
+        }
+        
+        Transaction myTr = transaction;
+        try {
+            return myTr.getPstValue(name, persistClass, true);
+        } catch (PersistException pe) {
+            if (!myTr.isAlive()) {
+                transaction = null;
+            }
+            throw pe;
+        }
+    }
+
     /**
      * Sets the content of the Persistent object specified by the name and class parameters 
      * to the value parameter.
@@ -182,6 +351,244 @@ public class TransactionHandle {
         }
     }
     
+    /**
+     * Returns the value of the Long Persistent object of the argument name, or 0 if it does
+     * not exist or has been deleted.  Takes control of the object, as getPstValue().
+     * Long, Integer and Double objects are held and logged without object serialization.
+     */
+    public long getLong(String name) throws PersistException {
+        Long val = (Long) getPstValue(name, Long.class);
+        return (val == null) ? 0L : val.longValue();
+    }
+
+    /**
+     * Sets the value of the Long Persistent object of the argument name, as setPstValue().
+     */
+    public void setLong(String name, long value) throws PersistException {
+        setPstValue(name, Long.class, Long.valueOf(value));
+    }
+
+    /**
+     * Adds the argument delta to the value of the Long Persistent object of the argument name
+     * (0 if it does not exist) under the current transaction, and returns the result.
+     * Unlike increment(), never commits: if no transaction is in progress one is started,
+     * and the change is committed or rolled back with it.
+     */
+    public long addAndGet(String name, long delta) throws PersistException {
+        long value = getLong(name) + delta;
+        setLong(name, value);
+        return value;
+    }
+
+    /**
+     * Returns the value of the Integer Persistent object of the argument name, or 0 if it does
+     * not exist or has been deleted.  Takes control of the object, as getPstValue().
+     */
+    public int getInt(String name) throws PersistException {
+        Integer val = (Integer) getPstValue(name, Integer.class);
+        return (val == null) ? 0 : val.intValue();
+    }
+
+    /**
+     * Sets the value of the Integer Persistent object of the argument name, as setPstValue().
+     */
+    public void setInt(String name, int value) throws PersistException {
+        setPstValue(name, Integer.class, Integer.valueOf(value));
+    }
+
+    /**
+     * Returns the value of the Double Persistent object of the argument name, or 0 if it does
+     * not exist or has been deleted.  Takes control of the object, as getPstValue().
+     */
+    public double getDouble(String name) throws PersistException {
+        Double val = (Double) getPstValue(name, Double.class);
+        return (val == null) ? 0.0 : val.doubleValue();
+    }
+
+    /**
+     * Sets the value of the Double Persistent object of the argument name, as setPstValue().
+     */
+    public void setDouble(String name, double value) throws PersistException {
+        setPstValue(name, Double.class, Double.valueOf(value));
+    }
+
+    /**
+     * Returns a read-only view of the bytes of the opaque Persistent object of the argument
+     * name, or null if it does not exist or has been deleted.  Takes control of the object, as
+     * getPstValue().
+     * Opaque objects are held under the class ByteBuffer, as the byte[] they were set with,
+     * and are logged and checkpointed as raw bytes, never serialized or copied;
+     * getPstValue(name, ByteBuffer.class) returns the array itself, which must not be modified.
+     */
+    public ByteBuffer getBytes(String name) throws PersistException {
+        byte[] val = (byte[]) getPstValue(name, ByteBuffer.class);
+        return (val == null) ? null : ByteBuffer.wrap(val).asReadOnlyBuffer();
+    }
+
+    /**
+     * Sets the bytes of the opaque Persistent object of the argument name, as setPstValue().
+     * The array is held as-is, not copied, so must not be modified after the call.
+     */
+    public void setBytes(String name, byte[] value) throws PersistException {
+        setPstValue(name, ByteBuffer.class, value);
+    }
+
+    /**
+     * Sets the bytes of the opaque Persistent object of the argument name to the remaining
+     * bytes of the argument buffer, as setPstValue().  A buffer wrapping the whole of an array
+     * is held without copying, as setBytes(name, byte[]); any other buffer is copied.
+     * The position of the buffer is not changed.
+     */
+    public void setBytes(String name, ByteBuffer value) throws PersistException {
+        
+        byte[] val = null;
+        if (value != null) {
+            if (value.hasArray() && value.arrayOffset() == 0 && value.position() == 0 &&
+                value.remaining() == value.array().length) {
+                val = value.array();
+            } else {
+                val = new byte[value.remaining()];
+                value.duplicate().get(val);
+            }
+        }
+        setBytes(name, val);
+    }
+
+    /**
+     * Returns true if the Persistent object specified by the name and class parameters exists
+     * in the library.  Does not take control of the object.
+     */
+    public boolean exists(String name, Class<?> persistClass) throws PersistException {
+        return tManager.getExistingPersistent(name, persistClass) != null;
+    }
+
+    /**
+     * Replaces the value of the Persistent object specified by the name and class parameters
+     * with the result of applying the argument operator to it (null if the object does not
+     * exist), and returns the new value.
+     * If this handle has no transaction in progress, the update runs as a transaction of its
+     * own that takes only this object, and is committed before the method returns; on an
+     * optimistic handle it is retried until it commits without conflict.  The object is held
+     * from the read until the commit has been logged, as for getPstValue(), setPstValue() and
+     * commit() - what is saved is the caller's round trips, not lock time.
+     * If this handle has a transaction in progress, the update joins it: it sees any value set
+     * earlier in that transaction, and the object stays under its control until it is
+     * committed or rolled back.  (A second transaction on the same thread could wait for the
+     * first, which would wait for it, unseen by deadlock resolution.)
+     * If the operator throws, an update run as its own transaction is rolled back.
+     */
+    public <T extends Serializable> T update(String name, Class<T> persistClass, UnaryOperator<T> op) throws PersistException {
+        
+        boolean own = (transaction == null);
+        for (;;) {
+            try {
+                T value = op.apply(persistClass.cast(getPstValue(name, persistClass)));
+                setPstValue(name, persistClass, value);
+                if (own) {
+                    commit();
+                }
+                return value;
+            } catch (OptimisticConflictException conflict) {
+                if (!own) {
+                    throw conflict;
+                }
+                // rolled back - run it again against the value that beat us
+            } catch (RuntimeException re) {
+                if (own) {
+                    rollBack();
+                }
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * Sets the value of the Persistent object specified by the name and class parameters to
+     * newValue if its current value equals expected (null matching an object that does not
+     * exist), and returns true; otherwise leaves it unchanged and returns false.
+     * Runs as a transaction of its own, or joins the transaction in progress, as update();
+     * a transaction of its own is rolled back, not committed, when the values differ.
+     */
+    public <T extends Serializable> boolean compareAndSet(String name, Class<T> persistClass, T expected, T newValue) throws PersistException {
+        
+        boolean own = (transaction == null);
+        for (;;) {
+            try {
+                if (!Objects.equals(getPstValue(name, persistClass), expected)) {
+                    if (own) {
+                        rollBack();
+                    }
+                    return false;
+                }
+                setPstValue(name, persistClass, newValue);
+                if (own) {
+                    commit();
+                }
+                return true;
+            } catch (OptimisticConflictException conflict) {
+                if (!own) {
+                    throw conflict;
+                }
+            } catch (RuntimeException re) {
+                if (own) {
+                    rollBack();
+                }
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * Adds the argument delta to the value of the Long Persistent object of the argument name
+     * (0 if it does not exist), and returns the result.
+     * Runs as a transaction of its own, or joins the transaction in progress, as update():
+     * unlike addAndGet(), which always leaves the change to be committed with the current
+     * transaction, it commits at once when no transaction is in progress.
+     */
+    public long increment(String name, long delta) throws PersistException {
+        
+        final long d = delta;
+        return update(name, Long.class, new UnaryOperator<Long>() {
+            public Long apply(Long value) {
+                return Long.valueOf((value == null) ? d : value.longValue() + d);
+            }
+        }).longValue();
+    }
+
+    /**
+     * Adds one to the value of the Long Persistent object of the argument name, as increment(name, 1).
+     */
+    public long increment(String name) throws PersistException {
+        return increment(name, 1L);
+    }
+
+    /**
+     * As setPstValue(), but never waits: if a transaction owned by a different TransactionHandle
+     * controls the identified object, returns false at once, without setting it.  The current 
+     * transaction is unaffected, and may go on or be rolled back.
+     * Returns true if the value was set.
+     */
+    public boolean trySetPstValue(String name, Class<?> persistClass, Serializable value) throws PersistException {
+     
+        if ((getTransaction()) == null) {
+            throw new PersistException ("Persistence Engine Down.");
+        }
+        
+        Transaction myTr = transaction;
+        try {
+            return myTr.setPstValue(name, persistClass, value, true);
+        } catch (PersistException pe) {
+            if (!myTr.isAlive()) {
+                transaction = null;
+            }
+            throw pe;
+        }
+    }
+    
     private Transaction transaction;
+    private long lockTimeout = -1L;
+    private boolean readOnly;
+    private boolean snapshot;
+    private boolean optimistic;
     private static TransactionMgr tManager = TransactionMgr.getInstance();
 }
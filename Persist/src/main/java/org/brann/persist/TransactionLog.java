@@ -32,51 +32,57 @@ package org.brann.persist;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that represents the log of transactional activity. Writes out entries
  * as transactions commit. Is responsible for 'rolling forward' the log in a
  * warm start after a termination without a shutdown.
+ * Committing threads encode their own log records; all file output is performed
+ * by a single LogWriter thread.  The records are written in the binary format
+ * described in LogFormat.
  */
 class TransactionLog {
 	/**
-	 * Write out a transaction log entry for the argument Persistent object and
-	 * transaction. If the write succeeds, return the log object. if there is a
-	 * failure (due to an IO problem, for instance), null is returned.
+	 * Build a transaction log entry for the argument Persistent object and
+	 * transaction. The entry is written to the log, along with the rest of the
+	 * transaction, by logCommit().
 	 */
-	synchronized LogEntry logEntry(Persistent po, Transaction tx) {
-		PersistentLogEntry logged = new PersistentLogEntry(po, tx);
-
-		try {
-			logFileWriteObj.writeObject(logged);
-			flusher.addChanged(logged);
-			return logged;
-		} catch (Exception e) {
-			System.err.println("Failure to log PO update.  " + e);
-			return null;
-		}
+	LogEntry logEntry(Persistent po, Transaction tx) {
+		return new PersistentLogEntry(po, tx);
 	}
 
 	/**
-	 * replay checkpoints and logs, then start up.
+	 * replay checkpoints and logs, then start up.  Throws a PersistException, having started
+	 * nothing, if the logs cannot be replayed in commit order.
 	 */
-	void warmStart(PersistentLibrary lib) {
+	void warmStart(PersistentLibrary lib) throws PersistException {
 
 		flusher.warmStart(lib);
 		replay(lib);
+		destroyFiles(SPARENAME);
 		buildLogFile();
+		writer.start();
 		flusher.startCheckpointer();
 		flusher.logAvailable();
 	}
 
 	/**
-	 * Close the current transaction log and replace it with an empty file.
+	 * Performs a roll of the log file. Called only by the log writer thread.
 	 */
-	synchronized boolean rollLogfile() {
+	boolean rollLogfileNow() {
 
+		if (segment != null) {
+			rollPolicy.rolled(segment.size());
+		}
 		closeLogFile();
 		if (buildLogFile()) {
 			flusher.logAvailable();
@@ -95,8 +101,9 @@ class TransactionLog {
 
 		if (logDirectory.exists() && logDirectory.isDirectory()) {
 
-			if (destroyFiles(LOGFILENAME) && buildLogFile()) {
+			if (destroyFiles(LOGFILENAME) && destroyFiles(SPARENAME) && buildLogFile()) {
 				setLogLowSequence();
+				writer.start();
 				return true;
 			}
 		}
@@ -108,7 +115,7 @@ class TransactionLog {
 	 * the appropriate directory and returns true. If the directory does not
 	 * exist, does nothing and returns false.
 	 */
-	private synchronized boolean buildLogFile() {
+	private boolean buildLogFile() {
 
 		if (tm == null) { // not the ideal place to do this. Can't get it in
 							// constructer
@@ -123,16 +130,15 @@ class TransactionLog {
 
 		if (logDirectory.exists()) {
 			try {
-				// destroyLogFile();
-				log = new File(getFileName(LOGFILENAME, ++logHighSequence));
-				logFile = new RandomAccessFile(log, "rw");
-				logFileFD = logFile.getFD();
-				logFileWrite = new FileOutputStream(logFileFD);
-				logFileBuffered = new BufferedOutputStream(logFileWrite);
-				logFileWriteObj = new ObjectOutputStream(logFileBuffered);
-				logFileWriteObj.flush();
-				if (logFileWrite == null || logFileBuffered == null || logFileWriteObj == null)
-					System.err.println("Failed to build Transaction Log File.");
+				File log = new File(getFileName(LOGFILENAME, ++logHighSequence));
+				if (config.isPreallocatedSegments()) {
+					segment = new PreallocatedLogSegment(takeSpare(log));
+					prepareSpare();
+				} else {
+					segment = new StreamLogSegment(log);
+				}
+				LogFormat.writeHeader(segment);
+				segmentClasses.clear();
 				return true;
 			} catch (Exception e) {
 				System.err.println("FAILED TO BUILD TRANSACTION LOG!!! \n" + e);
@@ -141,17 +147,65 @@ class TransactionLog {
 		return false;
 	}
 
+	/**
+	 * Moves the spare, preallocated segment file into place as the argument log file
+	 * and returns it. If no spare is ready, one is preallocated now.
+	 */
+	private File takeSpare(File log) throws IOException {
+
+		File f = (spare == null) ? null : spare.join();
+		spare = null;
+		if (f == null || !f.renameTo(log)) {
+			if (f != null) {
+				f.delete();
+			}
+			PreallocatedLogSegment.preallocate(log, rollPolicy.getSegmentCapacity());
+		}
+		return log;
+	}
+
+	/**
+	 * Starts building the next spare segment file in the background, so that a log roll
+	 * never has to wait for the allocation.
+	 */
+	private void prepareSpare() {
+
+		final File f = new File(getFileName(SPARENAME, ++spareSequence));
+		final long capacity = rollPolicy.getSegmentCapacity();
+		final CompletableFuture<File> result = new CompletableFuture<File>();
+		spare = result;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					PreallocatedLogSegment.preallocate(f, capacity);
+					result.complete(f);
+				} catch (IOException ioe) {
+					System.err.println("Unable to preallocate log segment: " + ioe);
+					f.delete();
+					result.complete(null);
+				}
+			}
+		}, "Log Preallocator");
+		t.setDaemon(true);
+		t.start();
+	}
+
 	/**
 	 * Closes (but does not destroy) the current log file.
 	 */
-	synchronized void closeLogFile() {
+	void closeLogFile() {
 
-		if (logFileWriteObj != null) {
+		if (segment != null) {
 			try {
-				logFileWriteObj.close();
+				// a file that is not the newest must be complete - see replay()
+				segment.flush();
+				segment.sync();
+				segment.close();
 			} catch (IOException ioe) {
 				System.err.println("Close problem: " + ioe);
 			}
+			segment = null;
 		}
 	}
 
@@ -159,8 +213,14 @@ class TransactionLog {
 	 * Reads the log file, inserting any Persistent objects logged for committed
 	 * transactions into the parameter PersistentLibrary. Returns true if any
 	 * Persistent object was restored to the library, false otherwise.
+	 * Damage at the end of the newest file is cut off.  Damage in any other file means that
+	 * committed transactions in it are lost, and replaying the later files on top would
+	 * apply the transactions after them out of order: a PersistException is thrown instead,
+	 * leaving the files as they are.  A record that is intact but cannot be decoded or
+	 * applied is damage like any other; a file that is not a log of a known version is not
+	 * replayed at all, and a PersistException is thrown.
 	 */
-	private boolean replay(PersistentLibrary lib) {
+	private boolean replay(PersistentLibrary lib) throws PersistException {
 		boolean rolledForward = false;
 		FileInputStream rp = null;
 		LogEntry wkf;
@@ -168,17 +228,23 @@ class TransactionLog {
 		List<PersistentLogEntry> tran;
 		Long tid;
 		BufferedInputStream bi = null;
-		ObjectInputStream roi = null;
+		LogFormat.Reader roi = null;
 
 		File[] lf = getFiles(LOGFILENAME);
 
 		for (int loop = 0; loop < lf.length; ++loop) {
+			roi = null;
+			rp = null;
+			bi = null;
+			boolean hasRecords = false;
 			try {
 				rp = new FileInputStream(lf[loop]);
 				bi = new BufferedInputStream(rp);
-				roi = new ObjectInputStream(bi);
+				roi = new LogFormat.Reader(bi, lf[loop].length());
+
+				hasRecords = roi.readHeader();
 
-				while ((wkf = (LogEntry) roi.readObject()) != null) {
+				while (hasRecords && (wkf = roi.next()) != null) {
 
 					tid = new Long(wkf.getTranID());
 					if (wkf instanceof EndTransactionEntry) { // this is a
@@ -206,20 +272,33 @@ class TransactionLog {
 						tran.add((PersistentLogEntry) wkf);
 					}
 				}
-			} catch (EOFException ok) {
 			} catch (Exception e) {
-				System.err.println(e);
-			}
-			if (rp != null)
+				if (roi == null || !hasRecords) {
+					// unreadable, or not a log of a version we know - not crash damage, and
+					// cutting it back would destroy it
+					throw new PersistException("Unable to read transaction log " + lf[loop] + ": " + e);
+				}
+				// an intact frame that cannot be decoded or applied (an undefined class id,
+				// a class that will not load...) loses what follows as surely as a bad checksum
+				roi.failed(e);
+			} finally {
 				try {
-					if (roi != null)
-						roi.close();
 					if (bi != null)
 						bi.close();
-					if (rp != null)
+					else if (rp != null)
 						rp.close();
-				} catch (Exception e) {
+				} catch (IOException e) {
 				}
+			}
+			if (roi.getDamageOffset() >= 0) {
+				if (loop < lf.length - 1) {
+					throw new PersistException("Transaction log " + lf[loop] + " damaged at offset "
+							+ roi.getDamageOffset() + " (" + roi.getDamage() + "), with later log files present:"
+							+ " committed transactions would be replayed out of order.  Restore the file, or remove"
+							+ " it and every later log file to accept the loss, before starting.");
+				}
+				truncateDamaged(lf[loop], roi);
+			}
 			// ensure that the checkpointer rolls its checkpoint data forwards.
 			flusher.logAvailable();
 		}
@@ -231,63 +310,151 @@ class TransactionLog {
 	}
 
 	/**
-	 * Writes the log entry marking a committed transaction. Returns true if the
-	 * log entry was written successfully, false otherwise.
+	 * Reports the damage found at the end of the newest log file - the expected result of
+	 * a crash part way through a write - and cuts the file back to its last intact record.
 	 */
-	boolean logCommit(Transaction tx) {
-		return (logEndTransaction(true, tx));
+	private void truncateDamaged(File f, LogFormat.Reader reader) {
+
+		System.err.println("Transaction log " + f + " damaged at offset " + reader.getDamageOffset()
+				+ " (" + reader.getDamage() + ") - discarding incomplete tail"
+				+ "; truncating to " + reader.getValidLength() + " bytes.");
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(reader.getValidLength());
+			raf.getFD().sync();
+		} catch (IOException ioe) {
+			System.err.println("Unable to truncate damaged transaction log " + f + ": " + ioe);
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException ioe) {
+			}
+		}
 	}
 
 	/**
-	 * Writes the log entry marking a rolled-back transaction. Returns true if
-	 * the log entry was written successfully, false otherwise.
+	 * Writes the log entries for the argument transaction's changes, followed by the
+	 * entry marking the committed transaction. The records are encoded on the calling
+	 * thread and handed to the log writer as a single unit, so a transaction's records
+	 * are never separated by a log roll. Returns true once the records have been
+	 * written (and synchronized, if due), false otherwise.
 	 */
-	boolean logRollBack(Transaction tx) {
-		// don't write end transaction marker for a rollback.
-		// return (logEndTransaction(false, tx));
-		return true;
+	boolean logCommit(Transaction tx, List<PersistentLogEntry> entries) {
+
+		return logCommitAsync(tx, entries).join().booleanValue();
 	}
 
 	/**
-	 * Performs the actual writing of the special entry marking the end of a
-	 * transaction (either commit or roll-back). Returns true if successful,
-	 * false otherwise.
+	 * As logCommit(), but returns without waiting for the write: the future completes with
+	 * true once the records have been written (and synchronized, if due), false otherwise.
 	 */
-	private synchronized boolean logEndTransaction(boolean commit, Transaction tx) {
+	CompletableFuture<Boolean> logCommitAsync(Transaction tx, List<PersistentLogEntry> entries) {
 
-		++numCmts;
+		byte[] data;
 
 		try {
-			if (commit) {
-				logFileWriteObj.writeObject(new EndTransactionEntry(tx.getID()));
-			}
-
-			if (numCmts >= tm.getSyncFrequency()) {
-				numCmts = 0;
-				logFileWriteObj.flush();
-				logFileFD.sync();
+			LogFormat.RecordBuffer rb = new LogFormat.RecordBuffer(RECORD_SIZE * (entries.size() + 1));
 
-				try {
-					long len = logFile.length();
-					if (rcmdRoll == false && len > TransactionMgr.MAX_FILESIZE) {
-						rcmdRoll = true;
-					}
-				} catch (IOException ioe) {
-					System.out.println(ioe.getMessage());
-				/* ?? don't care ?? */}
+			for (PersistentLogEntry ple : entries) {
+				LogFormat.encodeUpdate(rb, ple, classId(ple.getPersistentClass()));
 			}
+			LogFormat.encodeCommit(rb, tx.getID());
+			data = rb.toByteArray();
 		} catch (Exception e) {
-			System.err.println("Failure to log End of Transaction " + commit + tx + e);
-			return false;
+			System.err.println("Failure to encode transaction log entries " + tx + " " + e);
+			return CompletableFuture.completedFuture(Boolean.FALSE);
 		}
+		return writer.submit(new LogWriter.Submission(data, entries));
+	}
+
+	/**
+	 * Returns the id under which the argument class is recorded in the log, allocating one if necessary.
+	 */
+	private int classId(Class<?> pClass) {
+
+		Integer id = classIds.get(pClass);
+		if (id == null) {
+			Integer newId = Integer.valueOf(nextClassId.incrementAndGet());
+			id = classIds.putIfAbsent(pClass, newId);
+			if (id == null) {
+				id = newId;
+			}
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Writes the log entry marking a rolled-back transaction. Returns true if
+	 * the log entry was written successfully, false otherwise.
+	 */
+	boolean logRollBack(Transaction tx) {
+		// don't write end transaction marker for a rollback.
 		return true;
 	}
 
+	/**
+	 * Append the argument encoded records to the log file and pass the changes they
+	 * contain to the checkpointer. Called only by the log writer thread.
+	 */
+	void writeRecords(byte[] data, List<PersistentLogEntry> entries) throws IOException {
+
+		// define any class not yet used in this log file before the records that refer to it
+		classDefs.reset();
+		for (PersistentLogEntry ple : entries) {
+			Class<?> pClass = ple.getPersistentClass();
+			Integer id = classIds.get(pClass);
+			if (segmentClasses.add(id)) {
+				LogFormat.encodeClass(classDefs, id.intValue(), pClass);
+			}
+		}
+		if (classDefs.size() > 0) {
+			classDefs.writeTo(segment);
+		}
+		segment.write(data, 0, data.length);
+		for (Iterator<PersistentLogEntry> it = entries.iterator(); it.hasNext();) {
+			flusher.addChanged(it.next());
+		}
+		if (rcmdRoll == false && rollPolicy.shouldRoll(segment.size())) {
+			rcmdRoll = true;
+		}
+	}
+
+	/**
+	 * Pushes buffered records to the operating system. Called only by the log writer thread.
+	 */
+	void flushLog() throws IOException {
+		segment.flush();
+	}
+
+	/**
+	 * Forces the log file to disk. Called only by the log writer thread.
+	 */
+	void syncLog() throws IOException {
+		segment.sync();
+	}
+
+	/**
+	 * Returns true if the argument number of bytes of records (and any class definitions
+	 * they need) fit in the current log file. An empty file always has room.
+	 * Called only by the log writer thread.
+	 */
+	boolean hasRoom(int len) {
+		return segment.size() <= LogFormat.HEADER_SIZE || segment.hasRoom(len + CLASS_DEF_ROOM);
+	}
+
 	void shutDown() {
 		try {
+			writer.shutDown();
 			flusher.shutDown();
 			closeLogFile();
 			destroyFiles(LOGFILENAME);
+			if (spare != null) {
+				spare.join();
+				spare = null;
+			}
+			destroyFiles(SPARENAME);
 
 		} catch (Exception e) {
 			System.err.println("Problem closing log file: " + e);
@@ -424,6 +591,13 @@ class TransactionLog {
 		return rcmdRoll;
 	}
 
+	/**
+	 * Returns the configuration this log was built with.
+	 */
+	PersistConfig getConfig() {
+		return config;
+	}
+
 	/**
 	 * java.io.FileFilter used to select checkpoint files froma directory's
 	 * contents.
@@ -449,32 +623,41 @@ class TransactionLog {
 
 	/**
 	 * Constructor for transaction log in the directory specified by the full
-	 * path name string parameter.
+	 * path name string parameter, tuned by the argument configuration.
 	 */
-	TransactionLog(String logDir) {
+	TransactionLog(String logDir, PersistConfig config) {
 		logDirName = logDir;
+		this.config = config;
+		rollPolicy = new RollPolicy(config);
 		logDirectory = new File(logDirName);
 		rcmdRoll = false;
 		flusher = new Checkpointer(this);
+		writer = new LogWriter(this);
 	}
 
 	static final String LOGFILENAME = "TransactionLog";
 
-	private int numCmts = 0;
+	static final String SPARENAME = "SpareLog";
+	private static final int CLASS_DEF_ROOM = 1024; // allowance for class definitions written with a record
+	private static final int RECORD_SIZE = 128; // initial encoding space per record
 
-	private boolean rcmdRoll;
+	private volatile boolean rcmdRoll;
+	private final PersistConfig config;
+	private final RollPolicy rollPolicy;
 	private TransactionMgr tm;
 	private int logLowSequence;
 	private int logHighSequence;
 	private String logDirName;
 	private File logDirectory;
-	private File log;
-	private RandomAccessFile logFile;
-	private FileOutputStream logFileWrite;
-	private FileDescriptor logFileFD;
-	private BufferedOutputStream logFileBuffered;
-	private ObjectOutputStream logFileWriteObj;
+	private LogSegment segment;
+	private CompletableFuture<File> spare;
+	private int spareSequence;
+	private final ConcurrentHashMap<Class<?>, Integer> classIds = new ConcurrentHashMap<Class<?>, Integer>();
+	private final AtomicInteger nextClassId = new AtomicInteger();
+	private final Set<Integer> segmentClasses = new HashSet<Integer>(); // ids defined in the current log file
+	private final LogFormat.RecordBuffer classDefs = new LogFormat.RecordBuffer(256);
 	private Checkpointer flusher;
+	private LogWriter writer;
 
 	private static final String zeroString = "0000000000";
 
@@ -31,7 +31,17 @@
 
 package org.brann.persist;
 
+import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Singleton that constructs and controls the operation of the Persistence engine.
@@ -43,11 +53,21 @@ public final class TransactionMgr {
      * private constructor - enforcing singleton pattern 
      */
     private TransactionMgr() {
-        transactions = new HashSet<Transaction>();
-        transactionPool = Collections.synchronizedList(new LinkedList<Transaction>());
-        transactionBlocks = new HashMap<Transaction, Transaction>();
-        revTransactionBlocks = new HashMap<Transaction, ArrayList<Transaction>>();
-        blockLock = new Object();
+        transactions = Collections.newSetFromMap(new ConcurrentHashMap<Transaction, Boolean>());
+        transactionPool = new ConcurrentLinkedQueue<Transaction>();
+        blockLock = new ReentrantLock();
+        detector = new DeadlockDetector(this);
+        int completers = Runtime.getRuntime().availableProcessors();
+        commitExecutor = new ThreadPoolExecutor(completers, completers, 30, TimeUnit.SECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Commit Completion");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        commitExecutor.allowCoreThreadTimeOut(true);
         // determine the directory containing the log and
         // PO disk images.
         // this may be defined on the command line by -D
@@ -87,13 +107,29 @@ public final class TransactionMgr {
      * Throws a PersistException if unable to start. 
      */
     public void warmStart() throws PersistException {
+        warmStart(new PersistConfig());
+    }
+
+    /**
+     * Starts the engine as warmStart(), tuned by the argument configuration.
+     */
+    public void warmStart(PersistConfig config) throws PersistException {
 
         if (!isUp()) {
+        	this.config = config;
+        	snapshots = config.isMvcc() ? new SnapshotRegistry() : null;
         	library = new PersistentLibrary(logDirName, true);
-			logger = new TransactionLog(logDirName);
+			logger = new TransactionLog(logDirName, config);
 			killer = new rollBack();
 
-			logger.warmStart(library);
+			try {
+				logger.warmStart(library);
+			} catch (PersistException pe) {
+				System.err.println("Warm start failed: " + pe.getMessage());
+				killer.stopRollBack();
+				library.release();
+				throw pe;
+			}
 			state = UP;
 		}
     }
@@ -103,10 +139,19 @@ public final class TransactionMgr {
      * Throws a PersistException if unable to start. 
      */
     public void coldStart() throws PersistException {
+        coldStart(new PersistConfig());
+    }
+
+    /**
+     * Starts the engine as coldStart(), tuned by the argument configuration.
+     */
+    public void coldStart(PersistConfig config) throws PersistException {
         
         if (!isUp() ) {
+        	this.config = config;
+        	snapshots = config.isMvcc() ? new SnapshotRegistry() : null;
         	library = new PersistentLibrary(logDirName, false);
-            logger = new TransactionLog(logDirName);
+            logger = new TransactionLog(logDirName, config);
             killer = new rollBack();
             logger.coldStart();
             state = UP;
@@ -192,45 +237,109 @@ public final class TransactionMgr {
         return syncFrequency;
     }
 
-    /** recursively walk the block graph from the victim, looking for any repeated entry */
-    private boolean walkLocks(Transaction victim, Transaction blocker) {
-        Transaction candidate;
+    /**
+     * Enable or disable group commit.  When enabled, every commit() waits until its
+     * commit marker has been synchronized to disk, but concurrent committers share
+     * a single flush and sync - every batch of commits drained by the log writer is
+     * synchronized once - rather than queueing behind one sync each.
+     * This gives the durability of a Sync Frequency of 1 at a far higher commit rate
+     * under concurrent load.  When enabled, the Sync Frequency is ignored.
+     * Group commit is disabled by default.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
 
-        int failSafe = transactionBlocks.size();
-        for (candidate = blocker;
-             victim != candidate &&
-             candidate != null &&
-             failSafe >= 0 ;
-             failSafe--)
-                candidate = transactionBlocks.get(candidate);
+    /** Getter for property groupCommit.
+     * @return Value of property groupCommit.
+     */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
 
-        if (candidate != null)
-            // Deadlock encountered!
-            return true;
-        else
-            return false;
+    /** Getter for property config.
+     * @return The configuration the engine was last started with, or null if it has never been started.
+     */
+    public PersistConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the snapshot registry of the multi-version mode, or null if the engine was not
+     * started with it.
+     */
+    SnapshotRegistry getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Returns the executor on which asynchronous commits are completed once logged, so that
+     * their phase 2 - and whatever the client chains on them - never runs on the log writer.
+     * Its threads are daemons, and end when idle.
+     */
+    Executor getCommitExecutor() {
+        return commitExecutor;
+    }
+
+    /**
+     * Set the policy used to choose which transaction in a deadlock is rolled back.
+     * The default is VictimPolicy.LEAST_WORK.
+     */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /** Getter for property victimPolicy.
+     * @return Value of property victimPolicy.
+     */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /**
+     * Registers a codec to encode and decode the values of the argument persistent class, in
+     * place of Java serialization, or with a null codec removes the class's registration.
+     * Register codecs before starting the engine: objects already loaded keep the form they
+     * were built with, and the values stored for a class must always be read back by the
+     * same codec.
+     */
+    public <T extends Serializable> void registerCodec(Class<T> pClass, PersistCodec<T> codec) {
+        CodecPersistent.setCodec(pClass, codec);
+    }
+
+    /**
+     * Returns the codec registered for the argument persistent class, or null if its values
+     * are frozen by Java serialization.
+     */
+    public PersistCodec<?> getCodec(Class<?> pClass) {
+        return CodecPersistent.getCodec(pClass);
+    }
+
+    /**
+     * Returns the transactions the argument transaction is waiting for - the edges of the
+     * wait-for graph.  A waiting transaction waits for the holders of the Persistent it is
+     * queued on, and the waiters ahead of it, that it conflicts with, so the graph is always
+     * up to date as control is handed on.
+     * Called with blockLock held.
+     */
+    Collection<Transaction> blockersOf(Transaction waiter) {
+        Persistent p = waiter.getWaitingFor();
+        if (p == null) {
+            return Collections.emptySet();
+        }
+        return p.blockersOf(waiter);
     }
 
     /** Find deadlocks When they exist,
  *         select a Transaction to be killed
- *         in order to resolve the deadlock, and kill it */
-    private void deadlockResolution(Transaction victim, Transaction blocker)
+ *         in order to resolve the deadlock, and kill it.
+ *         Called with blockLock held, once the waiter is queued. */
+    private void deadlockResolution(Transaction waiter)
         throws PersistException {
-        if (walkLocks(victim, blocker) == true) {
-            Transaction todie;
-            // deadlock found...
-            // kill the transaction with the fewest pending updates
-            // in case of a tie, kill the older
-            // NOTE this only tests the victim and its immediate blocker
-            if (victim.numberPersistents() == blocker.numberPersistents())
-                if ((victim.getDate()).before(blocker.getDate()))
-                    todie = victim;
-                else
-                    todie = blocker;
-            else if (victim.numberPersistents() > blocker.numberPersistents())
-                todie = blocker;
-            else
-                todie = victim;
+        List<Transaction> cycle = detector.findCycle(waiter);
+        Transaction todie;
+        if (cycle != null &&
+            (todie = detector.chooseVictim(cycle, victimPolicy)) != null) {
 
 //            System.out.println ("DEADLOCK - BACKGROUND kill of " + todie);
             // we delegate the notification of the transaction to the killer thread - 
@@ -260,65 +369,23 @@ public final class TransactionMgr {
      * Throws a PersistException if the Engine is not up.
      * NOTE: This is the only place that Persistent objects are constructed in
      * normal operation (other than being restored in a warm-start).
-     * The method is synchronized to avoid a race on Persistent creation.
+     * The library creates the object atomically, so concurrent callers all get the same one.
      */
-    synchronized Persistent getPersistent(String name, Class<?> type) throws PersistException {
-        Persistent temp;
-        if ((temp = getExistingPersistent(name, type)) == null) {
-            temp = Persistent.persistentFactory(name, type);
-            library.addTo(temp);
+    Persistent getPersistent(String name, Class<?> type) throws PersistException {
+        if (state == UP) {
+            return library.getOrCreate(name, type);
+        } else {
+            throw new PersistException ("Transaction Manager is DOWN.");
         }
-        return temp;
     }
 
     /**
      * Removes a Transaction and all of its associated block data from the engine. 
      */
     void removeXaction(Transaction tx) {
-//        System.out.println("Removing blocks for " + tx);
-        //remove blocks and reverse blocks
-
-        synchronized (blockLock) {
-            if (transactionBlocks.containsKey(tx)) { // only on a roll-back
-                ArrayList<?> tmp = revTransactionBlocks.get(transactionBlocks.get(tx));
-                tmp.remove(tmp.indexOf(tx));
-                transactionBlocks.remove(tx);
-            }
-
-            ArrayList<Transaction> rb = revTransactionBlocks.get(tx);
-
-            if (rb != null) {
-                for (Transaction t : rb) {
-
-                    // Psychotic case - a rollback may have destroyed
-                    // the block by tx, and a new block for t may have
-                    // been created
-                    if (tx == transactionBlocks.get(t)) {
-                        transactionBlocks.remove(t);
-                    }
-
-                    synchronized (t) { //wake up the transaction we unblocked
-                        t.notify();
-                    }
-                }
-                revTransactionBlocks.remove(tx);
-            }
-        }
-        synchronized (ckptlock) {
-            transactions.remove(tx);
-            returnTransaction(tx);
-        // if removing the last transaction when a checkpoint
-        // is starting - notify the waiting checkpointer.
-            if (transactions.isEmpty()) {
-                if (ckpt) {
-//                    System.out.println ("Removing last transaction - CHECKPOINT can proceed");
-                    ckptlock.notifyAll();
-                }
-            }
-            if (!ckpt &&
-                logger.recommendCkp())
-                checkPoint();
-        }
+        // no block data to remove - the Persistents tx controlled have already been handed on
+        transactions.remove(tx);
+        returnTransaction(tx);
     }
 
     /**
@@ -328,48 +395,31 @@ public final class TransactionMgr {
         System.out.println ("---Start of Block report---");
         System.out.println ("\t---Blocks---");
 
-        synchronized (blockLock) {
-            for (Transaction tmp : transactionBlocks.keySet()) {
-                    System.out.println ("\t" + tmp + " blocked by  " + transactionBlocks.get(tmp));
-            }
-            System.out.println ("\t---Blocks---");
-            System.out.println ("\t---Reverse Blocks---");
-
-            for (Transaction tmp : revTransactionBlocks.keySet()) {
-
-                    System.out.print ("\t" + tmp + " blocks ");
-                    for (Transaction j : revTransactionBlocks.get(tmp)) {
-                         System.out.print (" " + j);
+        List<Transaction> active = new ArrayList<Transaction>(transactions);
+        blockLock.lock();
+        try {
+            for (Transaction tmp : active) {
+                    for (Transaction j : blockersOf(tmp)) {
+                         System.out.println ("\t" + tmp + " blocked by  " + j);
                     }
-                    System.out.println();
             }
+        } finally {
+            blockLock.unlock();
         }
-        System.out.println ("\t---Reverse Blocks---");
+        System.out.println ("\t---Blocks---");
         System.out.println ("---End of Block report---");
     }
 
     /**
-     * Create a new Transaction object.  During a checkpoint, will block until the checkpoint is complete.
+     * Create a new Transaction object.  Never waits for a log roll or checkpoint, and takes
+     * no lock - the pool and the active set are both concurrent collections.
      * returns null if the engine is not up.
     */
     Transaction newTransaction(TransactionHandle requester) {
         
         if (isUp()) {
-            Transaction temp;
-            synchronized (ckptlock) {
-                while (ckpt) {
-                    try {
-                        ckptlock.wait();
-                    } catch (InterruptedException e) {}
-                }
-                
-                if (isUp()) {
-                    temp = getTransaction(requester);
-                    transactions.add (temp);
-                } else {
-                    temp = null;
-                }
-            }
+            Transaction temp = getTransaction(requester);
+            transactions.add (temp);
             return temp;
         } else {
             return null;
@@ -378,10 +428,10 @@ public final class TransactionMgr {
     
     private Transaction getTransaction(TransactionHandle requester) {
         
-        if (transactionPool.isEmpty()) {
+        Transaction tmp = transactionPool.poll();
+        if (tmp == null) {
             return new Transaction(requester);
         } else {
-            Transaction tmp = transactionPool.remove(0);
             tmp.recycle(requester);
             return tmp;
         }
@@ -389,7 +439,7 @@ public final class TransactionMgr {
     
     private void returnTransaction(Transaction done) {
         
-        transactionPool.add(done);
+        transactionPool.offer(done);
     }
 
     /**
@@ -400,33 +450,18 @@ public final class TransactionMgr {
         
     }
 
-    /** When a transaction is blocked, add a block item for the victim and a reverse block item for the blocker */
-    boolean addBlock(Transaction victim, Transaction blocker)
+    /** When a transaction starts to wait for a Persistent, look for a deadlock it completes */
+    void addBlock(Transaction waiter)
         throws PersistException {
-        ArrayList<Transaction> wk;
-
-        if (victim != null && blocker != null) {
-            synchronized (blockLock) {
-                if (blocker.isAlive() &&
-                    victim.isAlive()) {
-                    if (!(transactionBlocks.containsKey(victim))) {
-                        transactionBlocks.put(victim, blocker);
-                    }
-                    if (!(revTransactionBlocks.containsKey(blocker))) {
-                        wk = new ArrayList<Transaction>();
-                        revTransactionBlocks.put(blocker, wk);
-                    } else {
-                        wk = revTransactionBlocks.get(blocker);
-                    }
-                    if (!(wk.contains(victim))) {
-                        wk.add(victim);
-                    }                 
-                    deadlockResolution(victim, blocker);
-                    return true;
-                }
+
+        blockLock.lock();
+        try {
+            if (waiter.isAlive()) {
+                deadlockResolution(waiter);
             }
+        } finally {
+            blockLock.unlock();
         }
-        return false;
     }
     
     /**
@@ -449,36 +484,6 @@ public final class TransactionMgr {
     TransactionLog getLogger() {
         return logger;
     }
-        
-    /** Triggers an interim checkpoint of the engine.
-     */
-    private boolean checkPoint() {
-        
-        synchronized (ckptlock) {
-            if (ckpt) // checkpoint already in progress...
-                return false;
-            
-            // First, stop any new transactions being created
-            ckpt = true;
-            // Now, wait until all in-flight transactions are complete
-            if (!transactions.isEmpty()) {
-                try {
-                    //                    System.out.println ("CHECKPOINT - waiting for " + transactions.size() + " transactions");
-                    ckptlock.wait(50);  // wait for a little while...
-                } catch (InterruptedException e) {}
-            }
-            
-            // check again - if we can't checkpoint now, someone else will do it later...
-            if (transactions.isEmpty()) {
-                //roll over the log
-                logger.rollLogfile();
-            }
-            //Lastly, free up handing out new transactions
-            ckpt = false;
-            ckptlock.notifyAll();
-        }
-        return true;
-    }
     
     /**
      * @link
@@ -493,33 +498,36 @@ public final class TransactionMgr {
     private static final int DOWN = 0;
     private static final int UP = 1;
     private java.util.ResourceBundle TmBundle;
-    private int state;
+    private volatile int state;
 
     public static final String PERSISTSUBDIR = "Library";
     public static final String LOGDIR = "org.brann.persist.logdir";
+    /** Default segment and checkpoint file size - see PersistConfig */
     public static final int MAX_FILESIZE = 200000;
     
     private int syncFrequency = 100;
-    Object blockLock;    
+    private volatile boolean groupCommit = false;
+    private volatile PersistConfig config;
+    private volatile SnapshotRegistry snapshots;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.LEAST_WORK;
+    private DeadlockDetector detector;
+    private ReentrantLock blockLock;    
+    private final ThreadPoolExecutor commitExecutor;
     private TransactionLog logger;
-    private boolean ckpt = false;
-    private Object ckptlock = new Object();
-    private List<Transaction> transactionPool;
+    private Queue<Transaction> transactionPool;
     private Set<Transaction> transactions;
-    private HashMap<Transaction, Transaction> transactionBlocks;
-    private HashMap<Transaction, ArrayList<Transaction>> revTransactionBlocks;
     private rollBack killer;
     private String logDirName;
     PersistentLibrary library;
 
     /**
-     * Class that contains a Thread iterating over a queue of Transactions selected for roll-back by deadlock resolution.  A separate thread is used to avoid possible threading deadlocks due to taking the victim Transaction's monitor to perform the notify() operation. 
+     * Class that contains a Thread iterating over a queue of Transactions selected for roll-back by deadlock resolution.  A separate thread is used so that deadlock resolution never wakes the victim from inside the block lock. 
      */
     class rollBack implements Runnable {
 
         rollBack() {
             stop = false;
-        rollBackQueue = Collections.synchronizedList(new LinkedList<Transaction>());
+            rollBackQueue = new LinkedBlockingQueue<Transaction>();
             myThread = new Thread(this, "Deadlock Killer");
             myThread.start();
         }
@@ -528,35 +536,28 @@ public final class TransactionMgr {
             while (!stop) {
                 this.processKills();
             }
-
-            synchronized(this) {  // the thread performing the shutdown is wait()ing
-                notify();
-            }
         }
 
         private void processKills() {
             Transaction victim;
             
-            while (rollBackQueue.size() > 0) {
-                victim = rollBackQueue.remove(0);
-                victim.wake();
+            try {
+                victim = rollBackQueue.poll(1000L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {/*System.out.println("Killer, interrupted");*/
+                return;
             }
-            synchronized(rollBackQueue) {
-                if (rollBackQueue.size() == 0) {
-                    try {
-                        rollBackQueue.wait(1000L);
-                    } catch (InterruptedException e) {/*System.out.println("Killer, interrupted");*/}
-                }
+            while (victim != null) {
+                victim.wake();
+                victim = rollBackQueue.poll();
             }
         }
 
-        synchronized void stopRollBack() {
+        void stopRollBack() {
             stop = true;
 
             myThread.interrupt();
         	while (myThread.isAlive()) {
             	try {
-                    wait();
                 	myThread.join();
             	} catch (InterruptedException e) {}
             }
@@ -564,14 +565,9 @@ public final class TransactionMgr {
 
         void newVictim (Transaction victim) {
             rollBackQueue.add(victim);
-            if (rollBackQueue.size() > 0) {
-                synchronized (rollBackQueue) {
-                    rollBackQueue.notify();
-                }
-            }
         }
         Thread myThread;
-        boolean stop;
-    private List<Transaction> rollBackQueue;
+        volatile boolean stop;
+    private BlockingQueue<Transaction> rollBackQueue;
     }
 }
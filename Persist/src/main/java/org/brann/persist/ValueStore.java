@@ -31,37 +31,46 @@
 
 package org.brann.persist;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Collections;
 /**
  *
  * Singleton used to convert between objects and their 'frozen' form held between
  * transactions.
+ * Each thread has its own set of streams, reused from one value to the next, so freezing
+ * and thawing never contend on a lock; the only allocation per frozen value is its
+ * exactly-sized result array.
  * @author  jbrann
  */
 class ValueStore {
     
-    class OutStreams {
-        ByteArrayOutputStream bos;
+    /**
+     * A thread's streams.  The object streams share their header, written once when the
+     * output stream is built; each frozen value starts with a reset marker, so any thread's
+     * input stream can thaw any thread's frozen value.
+     */
+    static class Streams {
+        ReusableByteArrayOutputStream bos;
         ObjectOutputStream oos;
-    }
-    
-    class InStreams {
+        DataOutputStream dos;
         ReusableByteArrayInputStream bis;
         ObjectInputStream ois;
+        ReusableByteArrayInputStream dbis;
+        DataInputStream dis;
+        boolean busy; // in use - a nested call on the same thread gets streams of its own
     }
     
     /**
      * Extension of java.io.ByteArrayInputStream that allows the byte array source to be
      * replaced without creating a new ByteArrayInputStream object. 
      */
-    class ReusableByteArrayInputStream extends java.io.ByteArrayInputStream {
+    static class ReusableByteArrayInputStream extends ByteArrayInputStream {
         
         public ReusableByteArrayInputStream(byte[] buf) {
             super(buf);
@@ -76,24 +85,38 @@ class ValueStore {
         
     }
     
+    /**
+     * Extension of java.io.ByteArrayOutputStream that reports the size of its buffer, so
+     * that a buffer grown by an unusually large value need not be kept. 
+     */
+    static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        
+        int capacity() {
+            return buf.length;
+        }
+    }
+    
     protected ValueStore(){
-        inPool = Collections.synchronizedList(new LinkedList<InStreams>());
-        outPool = Collections.synchronizedList(new LinkedList<OutStreams>());
-   }
+    }
 
-    protected synchronized void extendPool() throws PersistException {
-        InStreams is = new InStreams();
-        OutStreams os = new OutStreams();
+    /**
+     * Builds a new set of streams. 
+     */
+    private static Streams newStreams() throws PersistException {
+        Streams st = new Streams();
         try {
-            os.bos = new ByteArrayOutputStream();
-            os.oos = new ObjectOutputStream(os.bos);
-            is.bis = new ReusableByteArrayInputStream(os.bos.toByteArray());
-            is.ois = new ObjectInputStream(is.bis);
-            inPool.add(is);
-            outPool.add(os);
+            st.bos = new ReusableByteArrayOutputStream();
+            st.oos = new ObjectOutputStream(st.bos);
+            st.oos.flush();
+            st.dos = new DataOutputStream(st.bos);
+            st.bis = new ReusableByteArrayInputStream(st.bos.toByteArray());
+            st.ois = new ObjectInputStream(st.bis);
+            st.dbis = new ReusableByteArrayInputStream(EMPTY);
+            st.dis = new DataInputStream(st.dbis);
         } catch (java.io.IOException ioe) {
             throw new PersistException (ioe.toString());
         }
+        return st;
     }
     
     /**
@@ -102,16 +125,17 @@ class ValueStore {
      */
     byte[] store (Serializable val) throws PersistException {
         
-        OutStreams out = getOstreams();
+        Streams out = getStreams();
         try {
             out.bos.reset();  // write at byte[0] of the byte array
             out.oos.reset();  // write a reset marker
             out.oos.writeObject(val);
             out.oos.flush(); // flushes down the i/o layers.
             byte[] result = out.bos.toByteArray();
-            returnOstreams(out); // note, if an exception is thrown these streams are discarded.
+            returnStreams(out); // note, if an exception is thrown these streams are discarded.
             return result;
         } catch (Exception e) {
+            discardStreams(out);
             throw new PersistException(e.toString());
         }
     }
@@ -122,53 +146,95 @@ class ValueStore {
      */
     Serializable retrieve (byte[] val) throws PersistException {
         
-        InStreams in = getIstreams();
+        Streams in = getStreams();
         try {
             in.bis.setArray(val);  // use the argument as the data source
             Serializable result = (Serializable)in.ois.readObject(); // read the object
-            returnIstreams(in);
+            in.bis.setArray(EMPTY); // do not hold on to the value
+            returnStreams(in);
             return result;
         } catch (Exception e) {
+            discardStreams(in);
             throw new PersistException (e.toString());
         }            
     }
     
-    synchronized InStreams getIstreams() throws PersistException {
+    /**
+     * Freeze the argument (non-null) object into a byte array with the argument codec.
+     */
+    <T extends Serializable> byte[] encode (PersistCodec<T> codec, T val) throws PersistException {
+        
+        Streams out = getStreams();
+        try {
+            out.bos.reset();
+            codec.encode(val, out.dos);
+            out.dos.flush();
+            byte[] result = out.bos.toByteArray();
+            returnStreams(out);
+            return result;
+        } catch (Exception e) {
+            discardStreams(out);
+            throw new PersistException(e.toString());
+        }
+    }
+    
+    /**
+     * Retrieve an object from the argument frozen form with the argument codec.
+     */
+    <T extends Serializable> T decode (PersistCodec<T> codec, byte[] val) throws PersistException {
         
-        if (inPool.size() == 0) {
-            extendPool();
+        Streams in = getStreams();
+        try {
+            in.dbis.setArray(val);
+            T result = codec.decode(in.dis);
+            in.dbis.setArray(EMPTY);
+            returnStreams(in);
+            return result;
+        } catch (Exception e) {
+            discardStreams(in);
+            throw new PersistException(e.toString());
         }
-        return (InStreams)inPool.remove(0);
     }
     
-    synchronized OutStreams getOstreams() throws PersistException {
-
-        if (outPool.size() == 0) {
-            extendPool();
+    /**
+     * Returns the current thread's streams, or new ones if they are already in use. 
+     */
+    private Streams getStreams() throws PersistException {
+        
+        Streams st = streams.get();
+        if (st == null) {
+            st = newStreams();
+            streams.set(st);
+        } else if (st.busy) {
+            return newStreams();
         }
-        return (OutStreams)outPool.remove(0);
+        st.busy = true;
+        return st;
     }
     
-    void returnIstreams(InStreams i) {
-        inPool.add(i);
+    private void returnStreams(Streams st) {
+        
+        st.busy = false;
+        if (st.bos.capacity() > MAX_RETAINED_BUFFER) {
+            discardStreams(st);
+        }
     }
     
-    void returnOstreams(OutStreams o) {
-        outPool.add(o);
+    private void discardStreams(Streams st) {
+        
+        if (streams.get() == st) {
+            streams.remove();
+        }
     }
     
     public static ValueStore getInstance(){
-            if (instance == null) {
-                synchronized(ValueStore.class) {
-                    if (instance == null) {
-                        instance = new ValueStore();
-                    }
-                }
-            }
             return instance;
         }    
-    static List<InStreams> inPool;
-    static List<OutStreams> outPool;
+
+    /** Buffers grown beyond this many bytes are dropped after use rather than kept by the thread */
+    static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<Streams> streams = new ThreadLocal<Streams>();
 
     /**
      * @link
@@ -177,6 +243,5 @@ class ValueStore {
      * @supplierRole Singleton factory 
      */
     /*# private ValueStrore _valueStrore; */    
-    private static ValueStore instance = null;
+    private static final ValueStore instance = new ValueStore();
 }
-
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2003 John Brann.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. All advertising materials mentioning features or use of this software
+ *    must display the following acknowledgement:
+ *      This product includes software developed by John Brann.
+ * 4. John Brann's name may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY JOHN BRANN``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL JOHN BRANN BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.brann.persist;
+
+/**
+ * Chooses which transaction is rolled back to break a deadlock.  When the TransactionMgr
+ * finds a cycle of transactions waiting for one another, it asks the policy for the cost of
+ * rolling back each member of the cycle and kills the cheapest; ties go to the youngest.
+ * Set the policy with TransactionMgr.setVictimPolicy().
+ */
+public interface VictimPolicy {
+
+    /**
+     * Returns the cost of rolling back a transaction.
+     * @param locksHeld the number of persistent objects the transaction controls.
+     * @param operations the number of get and set operations it has performed.
+     * @param ageMillis the time, in milliseconds, since it started.
+     */
+    long cost(int locksHeld, int operations, long ageMillis);
+
+    /** Kills the transaction that has performed the fewest operations (the default). */
+    VictimPolicy LEAST_WORK = new VictimPolicy() {
+        public long cost(int locksHeld, int operations, long ageMillis) {
+            return operations;
+        }
+    };
+
+    /** Kills the transaction that controls the fewest persistent objects. */
+    VictimPolicy FEWEST_LOCKS = new VictimPolicy() {
+        public long cost(int locksHeld, int operations, long ageMillis) {
+            return locksHeld;
+        }
+    };
+
+    /** Kills the youngest transaction. */
+    VictimPolicy YOUNGEST = new VictimPolicy() {
+        public long cost(int locksHeld, int operations, long ageMillis) {
+            return ageMillis;
+        }
+    };
+}
@@ -1,5 +1,7 @@
 package org.brann.persist.net;
 
+import java.nio.ByteBuffer;
+
 import org.brann.persist.PersistException;
 import org.brann.persist.TransactionHandle;
 import org.brann.persist.TransactionMgr;
@@ -17,27 +19,28 @@ public class PersistWebServiceImpl {
 	
 	public byte[] getExistingValue (String handle, String objName, String sourceClass) throws PersistException{
 		
-		TransactionHandle th = HandleManager.getHandleManager().get(handle);
-		ObjectWrapper ow = (ObjectWrapper)th.getExistingPstValue(mkObjName(sourceClass, objName), String.class);
-		if (ow != null) {
-			return ow.getValue();
-		} else return null;
+		return readValue(HandleManager.getHandleManager().get(handle), mkObjName(sourceClass, objName), true);
 	}
 
+	/**
+	 * Values are held as opaque bytes (under ByteBuffer), so are neither serialized nor copied
+	 * on the way in or out.  Values set by releases that wrapped them in an ObjectWrapper are
+	 * still read, until they are next set.
+	 */
 	public byte[] getValue (String handle, String objName, String sourceClass) throws PersistException {
 		
-		TransactionHandle th = HandleManager.getHandleManager().get(handle);
-		ObjectWrapper ow = (ObjectWrapper)th.getPstValue(mkObjName(sourceClass, objName), ObjectWrapper.class);
-		if (ow != null) {
-			return ow.getValue();
-		} else return null;
+		return readValue(HandleManager.getHandleManager().get(handle), mkObjName(sourceClass, objName), false);
 	}
 	
 	public boolean setValue (String handle, String objName, String sourceClass, byte[] object) throws PersistException {
 		
 		TransactionHandle th = HandleManager.getHandleManager().get(handle);
-		ObjectWrapper wrapper = new ObjectWrapper(sourceClass, object);
-		th.setPstValue(mkObjName(sourceClass, objName), ObjectWrapper.class, wrapper);
+		String name = mkObjName(sourceClass, objName);
+		th.setBytes(name, object);
+		if (th.exists(name, ObjectWrapper.class)) {
+			// drop the old form, so it cannot be read back in place of a later deletion
+			th.setPstValue(name, ObjectWrapper.class, null);
+		}
 		return true;
 	}
 	
@@ -97,6 +100,31 @@ public class PersistWebServiceImpl {
 		return true;
 	}
 	
+	/**
+	 * Reads the value of the argument name under the argument handle's transaction: the byte
+	 * form if it exists, otherwise the old ObjectWrapper form.  Neither is created.  setValue()
+	 * takes the byte form and then drops the old one, so the byte form is taken first here too;
+	 * if the old form has gone by the time it is taken, a setValue() has moved the value since,
+	 * and the byte form is read again.  If existing is true and neither form exists, throws a
+	 * PersistException.
+	 */
+	private byte[] readValue (TransactionHandle th, String name, boolean existing) throws PersistException {
+		
+		byte[] bytes = (byte[])th.findPstValue(name, ByteBuffer.class);
+		if (bytes == null) {
+			ObjectWrapper ow = (ObjectWrapper)th.findPstValue(name, ObjectWrapper.class);
+			if (ow != null) {
+				return ow.getValue();
+			}
+			if (th.exists(name, ByteBuffer.class)) {
+				bytes = (byte[])th.findPstValue(name, ByteBuffer.class);
+			} else if (existing && !th.exists(name, ObjectWrapper.class)) {
+				throw new PersistException ("No such Persistent exists.");
+			}
+		}
+		return bytes;
+	}
+	
 	private String mkObjName (String sourceClass, String srcName) {
 		
 		StringBuffer sb = new StringBuffer(sourceClass);
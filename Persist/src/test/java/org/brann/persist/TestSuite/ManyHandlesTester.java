@@ -0,0 +1,109 @@
+/*
+ * ManyHandlesTester.java
+ *
+ * Runs one task per TransactionHandle - on a pool of platform threads, many more tasks than
+ * threads, or on a virtual thread each.  Whether virtual threads pin their carriers is checked
+ * by the caller, from the jdk.tracePinnedThreads output (see the virtual-threads profile).
+ */
+
+package org.brann.persist.TestSuite;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brann.persist.PersistException;
+import org.brann.persist.TransactionHandle;
+
+public class ManyHandlesTester {
+
+    /**
+     * Each of the handles tasks commits a value to its own key, then increments one of hotKeys
+     * shared counters, retrying if its transaction is lost.
+     */
+    public ManyHandlesTester(int handles, int hotKeys) {
+        this(handles, hotKeys, false);
+    }
+
+    /**
+     * As ManyHandlesTester(handles, hotKeys), running each task on a virtual thread of its own
+     * if virtual is true.  Doing so needs a JVM with virtual threads (21 or later).
+     */
+    public ManyHandlesTester(int handles, int hotKeys, boolean virtual) {
+        this.handles = handles;
+        this.hotKeys = hotKeys;
+        this.virtual = virtual;
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or on a pool of
+     * platform threads.  Virtual threads are reached by reflection: the source level is 8.
+     */
+    private ExecutorService newExecutor() throws Exception {
+        if (virtual) {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }
+        return Executors.newFixedThreadPool(THREADS);
+    }
+
+    boolean doTest() throws Exception {
+
+        final AtomicInteger failures = new AtomicInteger();
+        long b4 = System.currentTimeMillis();
+        ExecutorService ex = newExecutor();
+        for (int i = 0; i < handles; ++i) {
+            final int me = i;
+            ex.execute(new Runnable() {
+                public void run() {
+                    TransactionHandle h = TransactionHandle.getTransactionHandle();
+                    try {
+                        h.setPstValue("vt" + me, Integer.class, Integer.valueOf(me));
+                        h.commit();
+                        String hot = "vtHot" + (me % hotKeys);
+                        for (;;) {
+                            try {
+                                Integer count = (Integer) h.getPstValue(hot, Integer.class);
+                                h.setPstValue(hot, Integer.class, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+                                h.commit();
+                                break;
+                            } catch (PersistException lost) {
+                                h.rollBack();
+                            }
+                        }
+                    } catch (PersistException pe) {
+                        System.out.println("FAILED on vt" + me + ": " + pe);
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        ex.shutdown();
+        if (!ex.awaitTermination(10, TimeUnit.MINUTES)) {
+            System.out.println("Timed out");
+            return false;
+        }
+        System.out.println(handles + " handles on " + (virtual ? "virtual threads: " : THREADS + " threads: ")
+                           + (System.currentTimeMillis() - b4) + "ms");
+
+        TransactionHandle h = TransactionHandle.getTransactionHandle();
+        int total = 0;
+        for (int k = 0; k < hotKeys; ++k) {
+            total += ((Integer) h.getExistingPstValue("vtHot" + k, Integer.class)).intValue();
+        }
+        for (int i = 0; i < handles; i += 997) {
+            if (!Integer.valueOf(i).equals(h.getExistingPstValue("vt" + i, Integer.class))) {
+                return false;
+            }
+        }
+        h.commit();
+        return failures.get() == 0 && total == handles;
+    }
+
+    private static final int THREADS = 200;
+    private int handles;
+    private int hotKeys;
+    private boolean virtual;
+}
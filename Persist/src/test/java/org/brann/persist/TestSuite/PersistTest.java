@@ -1,14 +1,37 @@
 package org.brann.persist.TestSuite;
 
 import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
+import org.brann.persist.LockTimeoutException;
+import org.brann.persist.OptimisticConflictException;
+import org.brann.persist.PersistCodec;
+import org.brann.persist.PersistConfig;
 import org.brann.persist.PersistException;
 import org.brann.persist.TransactionHandle;
 import org.brann.persist.TransactionMgr;
+import org.brann.persist.VictimPolicy;
+import org.junit.Assume;
 import org.junit.Test;
 
 public class PersistTest {
@@ -83,4 +106,970 @@ public class PersistTest {
 	}
 	
 
+	@Test
+	public void testGroupCommit() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			tm.setGroupCommit(true);
+			assertTrue(commitAndRestart(8, 50, "gc"));
+		} catch (Exception e) {
+			fail("Group commit: " + e);
+		} finally {
+			tm.setGroupCommit(false);
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testTornLogTail() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			h.setPstValue("tornOther", String.class, "kept");
+			h.commit();
+			for (int i = 0; i < 10; ++i) {
+				h.setPstValue("torn", Integer.class, Integer.valueOf(i));
+				h.commit();
+			}
+			// the files as a crash would leave them, with the last commit record only half written
+			Map<String, byte[]> crashed = copyLogDir();
+			tm.shutDown();
+			restoreLogDir(crashed);
+			File[] logs = logDirFiles("TransactionLog");
+			flipByte(logs[logs.length - 1], logs[logs.length - 1].length() - 1);
+
+			tm.warmStart();
+			assertEquals(Integer.valueOf(8), h.getExistingPstValue("torn", Integer.class));
+			assertEquals("kept", h.getExistingPstValue("tornOther", String.class));
+			h.setPstValue("torn", Integer.class, Integer.valueOf(100));
+			h.commit();
+			tm.shutDown();
+			tm.warmStart();
+			assertEquals(Integer.valueOf(100), h.getExistingPstValue("torn", Integer.class));
+			h.commit();
+		} catch (Exception e) {
+			fail("Torn log tail: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testDamagedEarlierLog() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setSegmentSize(20000);
+			tm.coldStart(config);
+			Map<String, byte[]> crashed = crashWithTwoLogs();
+			tm.shutDown();
+			restoreLogDir(crashed);
+			File[] logs = logDirFiles("TransactionLog");
+			flipByte(logs[0], logs[0].length() / 2);
+			byte[] first = Files.readAllBytes(logs[0].toPath());
+
+			try {
+				tm.warmStart(config);
+				fail("started with a damaged log before the newest");
+			} catch (PersistException expected) {
+			}
+			assertArrayEquals(first, Files.readAllBytes(logs[0].toPath()));
+			// the failed start let go of the directory
+			tm.coldStart();
+		} catch (Exception e) {
+			fail("Damaged earlier log: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testUndecodableEarlierLog() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setSegmentSize(20000);
+			tm.coldStart(config);
+			Map<String, byte[]> crashed = crashWithTwoLogs();
+			tm.shutDown();
+			restoreLogDir(crashed);
+			// an intact frame, checksum and all, for an update of a class id never defined
+			byte[] body = { 2, 1, 99 };
+			byte[] frame = ByteBuffer.allocate(8 + body.length).putInt(body.length).putInt(crc32c(body)).put(body).array();
+			File first = logDirFiles("TransactionLog")[0];
+			byte[] old = Files.readAllBytes(first.toPath());
+			byte[] damaged = new byte[old.length + frame.length];
+			System.arraycopy(old, 0, damaged, 0, 5); // the file header
+			System.arraycopy(frame, 0, damaged, 5, frame.length);
+			System.arraycopy(old, 5, damaged, 5 + frame.length, old.length - 5);
+			Files.write(first.toPath(), damaged);
+
+			try {
+				tm.warmStart(config);
+				fail("started with an undecodable log before the newest");
+			} catch (PersistException expected) {
+			}
+			assertArrayEquals(damaged, Files.readAllBytes(first.toPath()));
+		} catch (Exception e) {
+			fail("Undecodable earlier log: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testPreallocatedSegments() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setPreallocatedSegments(true);
+			tm.coldStart(config);
+			// enough data to fill several segments
+			assertTrue(commitAndRestart(4, 1000, "pa"));
+		} catch (Exception e) {
+			fail("Preallocated segments: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testAdaptiveRoll() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setSegmentSize(20000);
+			config.setCheckpointFileSize(50000);
+			config.setRollInterval(100);
+			config.setAdaptiveRoll(true);
+			config.setMinSegmentSize(8192);
+			tm.coldStart(config);
+			assertTrue(commitAndRestart(4, 500, "ar"));
+		} catch (Exception e) {
+			fail("Adaptive roll: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testCompactCheckpoints() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setSegmentSize(20000);
+			config.setCompactCheckpoints(true);
+			tm.coldStart(config);
+			// few keys, many updates - each checkpoint collapses to one image per key
+			assertTrue(commitAndRestart(2, 1000, "cc"));
+		} catch (Exception e) {
+			fail("Compact checkpoints: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testCompactionKeepsDamagedInputs() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			PersistConfig config = new PersistConfig();
+			config.setSegmentSize(20000);
+			config.setCheckpointFileSize(20000);
+			config.setCheckpointCompactionThreshold(1000); // let closed files pile up
+			tm.coldStart(config);
+			int n = fillCheckpoints(4, 0);
+			File[] inputs = checkpointFiles();
+			RandomAccessFile raf = new RandomAccessFile(inputs[1], "rw");
+			try {
+				// inside the data of the first entry
+				raf.seek(100);
+				byte[] junk = new byte[64];
+				Arrays.fill(junk, (byte) 0x5a);
+				raf.write(junk);
+			} finally {
+				raf.close();
+			}
+			config.setCheckpointCompactionThreshold(2);
+			// the first of two more files runs the compaction, which must give up
+			fillCheckpoints(inputs.length + 2, n);
+			for (File f : inputs) {
+				assertTrue(f + " deleted", f.exists());
+			}
+		} catch (Exception e) {
+			fail("Compaction of damaged checkpoints: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testLibrarySegments() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			for (int i = 0; i < 100; ++i) {
+				h.setPstValue("ls" + i, Integer.class, Integer.valueOf(i));
+			}
+			h.commit();
+			// a few changes per restart, so that each shutdown writes a small segment
+			for (int round = 1; round <= 10; ++round) {
+				tm.shutDown();
+				tm.warmStart();
+				h = TransactionHandle.getTransactionHandle();
+				h.setPstValue("ls" + round, Integer.class, Integer.valueOf(1000 + round));
+				h.setPstValue("ls" + (50 + round), Integer.class, null);
+				h.commit();
+			}
+			tm.shutDown();
+			tm.warmStart();
+			h = TransactionHandle.getTransactionHandle();
+			assertEquals(Integer.valueOf(1005), h.getExistingPstValue("ls5", Integer.class));
+			assertEquals(Integer.valueOf(20), h.getExistingPstValue("ls20", Integer.class));
+			h.rollBack();
+			assertFalse(tm.getLibKeys().get(Integer.class).contains("ls55"));
+			assertEquals(90, tm.getLibKeys().get(Integer.class).size());
+		} catch (Exception e) {
+			fail("Library segments: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testStaleLibraryImage() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			for (int i = 0; i < 10; ++i) {
+				h.setPstValue("sl" + i, Integer.class, Integer.valueOf(i));
+			}
+			h.commit();
+			tm.shutDown(); // everything changed - a full image
+			File[] images = logDirFiles("LibImg");
+			assertEquals(1, images.length);
+			byte[] first = Files.readAllBytes(images[0].toPath());
+
+			tm.warmStart();
+			for (int i = 0; i < 6; ++i) {
+				h.setPstValue("sl" + i, Integer.class, null);
+			}
+			h.commit();
+			tm.shutDown(); // more than half changed - another full image, replacing the first
+			// as if that shutdown had stopped before deleting the image it replaced
+			Files.write(images[0].toPath(), first);
+
+			tm.warmStart();
+			assertFalse(tm.getLibKeys().get(Integer.class).contains("sl0"));
+			assertEquals(4, tm.getLibKeys().get(Integer.class).size());
+			tm.shutDown();
+			assertFalse(images[0].exists());
+		} catch (Exception e) {
+			fail("Stale library image: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testDeadlockVictim() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			tm.setVictimPolicy(VictimPolicy.LEAST_WORK);
+			final TransactionHandle h1 = TransactionHandle.getTransactionHandle();
+			final TransactionHandle h2 = TransactionHandle.getTransactionHandle();
+			final String[] outcome = new String[2];
+
+			h1.setPstValue("dlA", String.class, "1");
+			h2.setPstValue("dlC", String.class, "2"); // h2 has done more work
+			h2.setPstValue("dlB", String.class, "2");
+			Thread t1 = new Thread(new Runnable() {
+				public void run() {
+					try {
+						h1.setPstValue("dlB", String.class, "1"); // blocks on h2
+						h1.commit();
+						outcome[0] = "committed";
+					} catch (PersistException pe) {
+						outcome[0] = "killed";
+					}
+				}
+			});
+			t1.start();
+			Thread.sleep(200);
+			h2.setPstValue("dlA", String.class, "2"); // closes the cycle
+			h2.commit();
+			outcome[1] = "committed";
+			t1.join();
+			assertEquals("killed", outcome[0]);
+			assertEquals("committed", outcome[1]);
+		} catch (Exception e) {
+			fail("Deadlock victim: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testSharedReaders() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle w = TransactionHandle.getTransactionHandle();
+			w.setPstValue("shared", String.class, "v1");
+			w.commit();
+
+			TransactionHandle r1 = TransactionHandle.getReadOnlyTransactionHandle();
+			TransactionHandle r2 = TransactionHandle.getReadOnlyTransactionHandle();
+			assertEquals("v1", r1.getPstValue("shared", String.class));
+			assertEquals("v1", r2.getPstValue("shared", String.class)); // does not block on r1
+			assertNull(r1.getPstValue("noSuchKey", String.class));
+
+			final TransactionHandle w2 = TransactionHandle.getTransactionHandle();
+			final boolean[] written = new boolean[1];
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						w2.setPstValue("shared", String.class, "v2"); // blocks on the readers
+						w2.commit();
+						written[0] = true;
+					} catch (PersistException pe) {
+						System.out.println("Write failed: " + pe);
+					}
+				}
+			});
+			t.start();
+			Thread.sleep(200);
+			assertFalse(written[0]);
+			r1.commit();
+			r2.commit();
+			t.join();
+			assertTrue(written[0]);
+			assertEquals("v2", r1.getPstValue("shared", String.class));
+			r1.commit();
+			try {
+				r1.setPstValue("shared", String.class, "v3");
+				fail("Set in read-only transaction");
+			} catch (PersistException expected) {
+			}
+		} catch (Exception e) {
+			fail("Shared readers: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testSnapshotReads() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		PersistConfig config = new PersistConfig();
+		config.setMvcc(true);
+		try {
+			tm.coldStart(config);
+			TransactionHandle w = TransactionHandle.getTransactionHandle();
+			w.setPstValue("mvcc", String.class, "v1");
+			w.commit();
+
+			TransactionHandle s1 = TransactionHandle.getSnapshotTransactionHandle();
+			assertTrue(s1.isSnapshot());
+			assertEquals("v1", s1.getPstValue("mvcc", String.class));
+			w.setPstValue("mvcc", String.class, "v2");
+			w.setPstValue("mvccNew", String.class, "n1");
+			assertEquals("v1", s1.getPstValue("mvcc", String.class)); // does not block on w
+			w.commit();
+			assertEquals("v1", s1.getPstValue("mvcc", String.class)); // still as of its start
+			assertNull(s1.getPstValue("mvccNew", String.class));
+
+			TransactionHandle s2 = TransactionHandle.getSnapshotTransactionHandle();
+			assertEquals("v2", s2.getPstValue("mvcc", String.class));
+			w.setPstValue("mvcc", String.class, "v3");
+			w.commit();
+			assertEquals("v1", s1.getPstValue("mvcc", String.class));
+			assertEquals("v2", s2.getPstValue("mvcc", String.class));
+			s1.commit();
+			s2.commit();
+			assertEquals("v3", s1.getPstValue("mvcc", String.class));
+			assertEquals("n1", s1.getPstValue("mvccNew", String.class));
+			s1.commit();
+
+			tm.shutDown();
+			tm.warmStart();
+			try {
+				TransactionHandle.getSnapshotTransactionHandle();
+				fail("Snapshot handle without multi-version mode");
+			} catch (PersistException expected) {
+			}
+		} catch (Exception e) {
+			fail("Snapshot reads: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testOptimisticConflict() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle o1 = TransactionHandle.getOptimisticTransactionHandle();
+			TransactionHandle o2 = TransactionHandle.getOptimisticTransactionHandle();
+			o1.setPstValue("occ", Integer.class, Integer.valueOf(1));
+			o1.commit();
+
+			Integer v1 = (Integer) o1.getPstValue("occ", Integer.class);
+			Integer v2 = (Integer) o2.getPstValue("occ", Integer.class);
+			o1.setPstValue("occ", Integer.class, Integer.valueOf(v1.intValue() + 1));
+			o2.setPstValue("occ", Integer.class, Integer.valueOf(v2.intValue() + 1));
+			assertEquals(Integer.valueOf(2), o1.getPstValue("occ", Integer.class));
+			o1.commit();
+			try {
+				o2.commit();
+				fail("Stale read committed");
+			} catch (OptimisticConflictException expected) {
+			}
+			v2 = (Integer) o2.getPstValue("occ", Integer.class); // retry
+			o2.setPstValue("occ", Integer.class, Integer.valueOf(v2.intValue() + 1));
+			o2.commit();
+
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			assertEquals(Integer.valueOf(3), h.getPstValue("occ", Integer.class));
+			h.commit();
+		} catch (Exception e) {
+			fail("Optimistic conflict: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testLockTimeout() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle holder = TransactionHandle.getTransactionHandle();
+			holder.setPstValue("hot", String.class, "held");
+
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			h.setLockTimeout(200);
+			long start = System.currentTimeMillis();
+			try {
+				h.getPstValue("hot", String.class);
+				fail("Lock wait did not time out");
+			} catch (LockTimeoutException expected) {
+			}
+			assertTrue(System.currentTimeMillis() - start >= 200);
+
+			TransactionHandle t = TransactionHandle.getTransactionHandle();
+			t.setPstValue("cold", String.class, "c1");
+			assertFalse(t.trySetPstValue("hot", String.class, "t1"));
+			try {
+				t.tryGetPstValue("hot", String.class);
+				fail("Busy Persistent read");
+			} catch (LockTimeoutException expected) {
+			}
+			t.commit(); // still alive, commits "cold"
+			holder.commit();
+			assertTrue(t.trySetPstValue("hot", String.class, "t2"));
+			try {
+				t.trySetPstValue("cold", String.class, Integer.valueOf(3));
+				fail("Changed the class of a Persistent");
+			} catch (PersistException expected) {
+			}
+			assertEquals("c1", t.tryGetPstValue("cold", String.class));
+			t.commit(); // the failed set left the transaction, and its hold on "hot", in place
+			assertEquals("t2", h.getPstValue("hot", String.class));
+			h.commit();
+		} catch (Exception e) {
+			fail("Lock timeout: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testManyHandles() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			assertTrue(new ManyHandlesTester(20000, 50).doTest());
+		} catch (Exception e) {
+			fail("Many handles: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	/**
+	 * Runs only under the virtual-threads profile (JDK 21 to 23), with -Djdk.tracePinnedThreads:
+	 * the JVM then prints the stack of any virtual thread that blocks while pinned to its carrier.
+	 */
+	@Test
+	public void testManyHandlesOnVirtualThreads() {
+
+		Assume.assumeTrue(Boolean.getBoolean("org.brann.persist.test.virtualThreads"));
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		PrintStream out = System.out;
+		ByteArrayOutputStream traces = new ByteArrayOutputStream();
+		try {
+			tm.coldStart();
+			System.setOut(new PrintStream(traces, true));
+			boolean ok;
+			try {
+				ok = new ManyHandlesTester(20000, 50, true).doTest();
+			} finally {
+				System.setOut(out);
+			}
+			out.print(traces);
+			assertTrue(ok);
+			// a pinning trace starts with the virtual thread, as VirtualThread[#id]/...
+			assertFalse("virtual threads pinned", traces.toString().contains("VirtualThread[#"));
+		} catch (Exception e) {
+			fail("Many handles on virtual threads: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testCommitAsync() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			List<CompletableFuture<Void>> pending = new LinkedList<CompletableFuture<Void>>();
+			for (int i = 0; i < 200; ++i) {
+				h.setPstValue("async" + (i % 10), Integer.class, Integer.valueOf(i));
+				pending.add(h.commitAsync()); // the next transaction may wait for this one's phase 2
+			}
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+			h.setPstValue("async0", Integer.class, Integer.valueOf(-1));
+			assertNotEquals("Log Writer", h.commitAsync().thenApply(new Function<Void, String>() {
+				public String apply(Void v) {
+					return Thread.currentThread().getName();
+				}
+			}).get(30, TimeUnit.SECONDS));
+			h.setPstValue("async0", Integer.class, Integer.valueOf(190));
+			h.commit();
+			for (int k = 0; k < 10; ++k) {
+				assertEquals(Integer.valueOf(190 + k), h.getExistingPstValue("async" + k, Integer.class));
+			}
+			h.commit();
+			tm.shutDown();
+			tm.warmStart();
+			assertEquals(Integer.valueOf(199), h.getExistingPstValue("async9", Integer.class));
+			h.commit();
+		} catch (Exception e) {
+			fail("Async commit: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testCodec() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		final int[] calls = new int[2];
+		tm.registerCodec(Content.class, new PersistCodec<Content>() {
+			public void encode(Content value, DataOutput out) throws IOException {
+				++calls[0];
+				out.writeInt(value.getValue());
+			}
+			public Content decode(DataInput in) throws IOException {
+				++calls[1];
+				Content c = new Content();
+				c.setValue(in.readInt());
+				return c;
+			}
+		});
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			for (int i = 0; i < 5; ++i) {
+				Content c = new Content();
+				c.setValue(i * 7);
+				h.setPstValue("coded" + i, Content.class, c);
+			}
+			h.commit();
+			assertEquals(5, calls[0]);
+			tm.shutDown();
+			tm.warmStart();
+			for (int i = 0; i < 5; ++i) {
+				assertEquals(i * 7, ((Content) h.getExistingPstValue("coded" + i, Content.class)).getValue());
+			}
+			h.commit();
+			assertTrue(calls[1] >= 5);
+		} catch (Exception e) {
+			fail("Codec: " + e);
+		} finally {
+			tm.shutDown();
+			tm.registerCodec(Content.class, null);
+		}
+	}
+
+	@Test
+	public void testCounters() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			assertEquals(0L, h.getLong("ctr"));
+			for (int i = 0; i < 100; ++i) {
+				h.addAndGet("ctr", 3);
+				h.commit();
+			}
+			h.setInt("ctrInt", -5);
+			h.setDouble("ctrDouble", 2.5);
+			assertEquals(302L, h.addAndGet("ctr", 2));
+			h.commit();
+			tm.shutDown();
+			tm.warmStart();
+			assertEquals(302L, h.getLong("ctr"));
+			assertEquals(-5, h.getInt("ctrInt"));
+			assertEquals(2.5, h.getDouble("ctrDouble"), 0.0);
+			assertEquals(Long.valueOf(302L), h.getPstValue("ctr", Long.class));
+			h.commit();
+		} catch (Exception e) {
+			fail("Counters: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testReadOwnWrites() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			h.setLong("own", 10L);
+			h.commit();
+			assertEquals(11L, h.addAndGet("own", 1));
+			assertEquals(12L, h.addAndGet("own", 1));
+			assertEquals(12L, h.getLong("own"));
+			h.setLong("own", 40L);
+			assertEquals(40L, h.getLong("own"));
+			assertEquals(42L, h.addAndGet("own", 2));
+			h.setPstValue("ownStr", String.class, "a");
+			assertEquals("a", h.getPstValue("ownStr", String.class));
+			h.commit();
+			assertEquals(42L, h.getLong("own"));
+			h.commit();
+		} catch (Exception e) {
+			fail("Read own writes: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testAtomicUpdates() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			Thread[] ta = new Thread[8];
+			for (int t = 0; t < ta.length; ++t) {
+				ta[t] = new Thread(new Runnable() {
+					public void run() {
+						TransactionHandle h = TransactionHandle.getTransactionHandle();
+						try {
+							for (int i = 0; i < 50; ++i) {
+								h.increment("hits");
+							}
+						} catch (PersistException pe) {
+							System.err.println("increment failed: " + pe);
+						}
+					}
+				});
+				ta[t].start();
+			}
+			for (Thread t : ta) {
+				t.join();
+			}
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			assertEquals(400L, h.getLong("hits"));
+			h.commit();
+
+			assertTrue(h.compareAndSet("cas", String.class, null, "one"));
+			assertFalse(h.compareAndSet("cas", String.class, "two", "three"));
+			assertTrue(h.compareAndSet("cas", String.class, "one", "two"));
+
+			// joins the open transaction, so goes away with it
+			h.getPstValue("cas", String.class);
+			assertEquals("twotwo", h.update("cas", String.class, new UnaryOperator<String>() {
+				public String apply(String v) {
+					return v + v;
+				}
+			}));
+			h.rollBack();
+			assertEquals("two", h.getPstValue("cas", String.class));
+			h.commit();
+
+			// joining a transaction that has already set the key
+			h.setLong("d", 5L);
+			assertEquals(6L, h.increment("d"));
+			assertEquals(8L, h.increment("d", 2L));
+			h.setPstValue("cas", String.class, "three");
+			assertFalse(h.compareAndSet("cas", String.class, "two", "four"));
+			assertTrue(h.compareAndSet("cas", String.class, "three", "four"));
+			h.setPstValue("casNew", String.class, "set");
+			assertFalse(h.compareAndSet("casNew", String.class, null, "other"));
+			h.rollBack();
+			assertEquals(0L, h.getLong("d"));
+			assertEquals("two", h.getPstValue("cas", String.class));
+			h.setLong("d", 5L);
+			h.increment("d");
+			h.commit();
+			assertEquals(6L, h.getLong("d"));
+			h.commit();
+		} catch (Exception e) {
+			fail("Atomic updates: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	@Test
+	public void testBytes() {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		try {
+			tm.coldStart();
+			TransactionHandle h = TransactionHandle.getTransactionHandle();
+			byte[] raw = { 1, 2, 3, 4, 5 };
+			h.setBytes("blob", raw);
+			h.setBytes("slice", ByteBuffer.wrap(raw, 1, 3));
+			h.commit();
+			assertSame(raw, h.getPstValue("blob", ByteBuffer.class));
+			h.commit();
+			tm.shutDown();
+			tm.warmStart();
+			ByteBuffer bb = h.getBytes("blob");
+			assertTrue(bb.isReadOnly());
+			assertEquals(ByteBuffer.wrap(raw), bb);
+			assertEquals(ByteBuffer.wrap(new byte[] { 2, 3, 4 }), h.getBytes("slice"));
+			assertNull(h.getBytes("none"));
+			h.commit();
+		} catch (Exception e) {
+			fail("Bytes: " + e);
+		} finally {
+			tm.shutDown();
+		}
+	}
+
+	/**
+	 * Commits updates to a few keys, numbered from the argument start, until there are at
+	 * least the argument number of checkpoint files.  Returns the next update number.
+	 */
+	static int fillCheckpoints(int files, int start) throws Exception {
+
+		String payload = new String(new char[200]).replace('\0', 'x');
+		TransactionHandle h = TransactionHandle.getTransactionHandle();
+		int n = start;
+		while (checkpointFiles().length < files) {
+			assertTrue("checkpoint files not written", n - start < 50000);
+			h.setPstValue("cd" + (n % 10), String.class, payload + n);
+			h.commit();
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the checkpoint files in the default log directory, in sequence order.
+	 */
+	static File[] checkpointFiles() {
+		return logDirFiles("ckp");
+	}
+
+	/**
+	 * Returns the files in the default log directory whose names start with the argument
+	 * prefix, in name order.
+	 */
+	static File[] logDirFiles(final String prefix) {
+
+		File dir = new File(System.getProperty(TransactionMgr.LOGDIR,
+				System.getProperty("user.dir") + File.separator + "logdir"));
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(prefix);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Returns the content of every file in the default log directory but the lock file,
+	 * by name - the state a crash at this point would leave.
+	 */
+	static Map<String, byte[]> copyLogDir() throws IOException {
+
+		Map<String, byte[]> rv = new HashMap<String, byte[]>();
+		for (File f : logDirFiles("")) {
+			if (f.isFile() && !f.getName().equals("Lock")) {
+				try {
+					rv.put(f.getName(), Files.readAllBytes(f.toPath()));
+				} catch (NoSuchFileException gone) {
+					// deleted by the checkpointer since the listing
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Commits to the running engine until its log directory holds at least two transaction
+	 * log files at once, and returns the content of the directory at that point, as copyLogDir().
+	 */
+	static Map<String, byte[]> crashWithTwoLogs() throws Exception {
+
+		TransactionHandle h = TransactionHandle.getTransactionHandle();
+		String payload = new String(new char[200]).replace('\0', 'x');
+		// old logs are deleted as checkpoints complete - catch two at once
+		for (int i = 0; ; ++i) {
+			assertTrue("log not rolled", i < 10000);
+			h.setPstValue("de" + (i % 10), String.class, payload + i);
+			h.commit();
+			if (logDirFiles("TransactionLog").length >= 2) {
+				Map<String, byte[]> crashed = copyLogDir();
+				int logCount = 0;
+				for (String name : crashed.keySet()) {
+					if (name.startsWith("TransactionLog")) {
+						++logCount;
+					}
+				}
+				if (logCount >= 2) {
+					return crashed;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the CRC-32C of the argument bytes, as the transaction log frames its records.
+	 */
+	static int crc32c(byte[] data) {
+
+		int crc = 0xFFFFFFFF;
+		for (byte b : data) {
+			crc ^= b & 0xFF;
+			for (int k = 0; k < 8; ++k) {
+				crc = (crc >>> 1) ^ (0x82F63B78 & -(crc & 1));
+			}
+		}
+		return ~crc;
+	}
+
+	/**
+	 * Inverts one bit of the byte at the argument position in the argument file.
+	 */
+	static void flipByte(File f, long pos) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek(pos);
+			int b = raf.read();
+			raf.seek(pos);
+			raf.write(b ^ 0x40);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Replaces every file in the default log directory but the lock file with the argument
+	 * files, as returned by copyLogDir().  The engine must be down.
+	 */
+	static void restoreLogDir(Map<String, byte[]> files) throws IOException {
+
+		for (File f : logDirFiles("")) {
+			if (f.isFile() && !f.getName().equals("Lock")) {
+				f.delete();
+			}
+		}
+		File dir = logDirFiles("")[0].getParentFile();
+		for (Map.Entry<String, byte[]> e : files.entrySet()) {
+			Files.write(new File(dir, e.getKey()).toPath(), e.getValue());
+		}
+	}
+
+	/**
+	 * Runs the argument number of threads, each committing the argument number of updates to
+	 * its own key, then shuts down, warm starts and checks that the last value of every key survived.
+	 */
+	static boolean commitAndRestart(final int threads, final int commits, final String prefix) throws Exception {
+
+		final TransactionMgr tm = TransactionMgr.getInstance();
+		final String payload = new String(new char[200]).replace('\0', 'x');
+
+		Thread[] ta = new Thread[threads];
+		final boolean[] ok = new boolean[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int me = t;
+			ta[t] = new Thread(new Runnable() {
+				public void run() {
+					TransactionHandle h = TransactionHandle.getTransactionHandle();
+					try {
+						for (int c = 0; c < commits; ++c) {
+							h.setPstValue(prefix + me, Integer.class, Integer.valueOf(c));
+							h.setPstValue(prefix + me, String.class, payload + c);
+							h.commit();
+						}
+						ok[me] = true;
+					} catch (PersistException pe) {
+						System.out.println("Commit failed: " + pe);
+					}
+				}
+			});
+			ta[t].start();
+		}
+		for (Thread t : ta) {
+			t.join();
+		}
+		tm.shutDown();
+		tm.warmStart();
+
+		TransactionHandle h = TransactionHandle.getTransactionHandle();
+		try {
+			for (int t = 0; t < threads; ++t) {
+				if (!ok[t] ||
+					!Integer.valueOf(commits - 1).equals(h.getExistingPstValue(prefix + t, Integer.class)) ||
+					!(payload + (commits - 1)).equals(h.getExistingPstValue(prefix + t, String.class))) {
+					return false;
+				}
+			}
+		} finally {
+			h.rollBack();
+		}
+		return true;
+	}
+
 }
@@ -0,0 +1,88 @@
+package org.brann.persist.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.brann.persist.PersistException;
+import org.brann.persist.TransactionHandle;
+import org.brann.persist.TransactionMgr;
+import org.junit.Test;
+
+public class PersistWebServiceTest {
+
+	@Test
+	public void testValues() {
+
+		TransactionMgr tm = TransactionMgr.getInstance();
+		final PersistWebServiceImpl ws = new PersistWebServiceImpl();
+		String handle = null;
+		String mover = null;
+		try {
+			tm.coldStart();
+			handle = ws.getTransactionHandle("test");
+			TransactionHandle th = HandleManager.getHandleManager().get(handle);
+			byte[] old = { 9, 8, 7 };
+			// as set by releases that wrapped values
+			th.setPstValue("Src\0old", ObjectWrapper.class, new ObjectWrapper("Src", old));
+			assertTrue(ws.commit(handle));
+
+			assertArrayEquals(old, ws.getValue(handle, "old", "Src"));
+			assertTrue(ws.commit(handle));
+			assertArrayEquals(old, ws.getExistingValue(handle, "old", "Src"));
+			assertFalse(th.exists("Src\0old", ByteBuffer.class));
+
+			byte[] replaced = { 1, 2 };
+			assertTrue(ws.setValue(handle, "old", "Src", replaced));
+			assertTrue(ws.commit(handle));
+			assertSame(replaced, ws.getValue(handle, "old", "Src"));
+			assertArrayEquals(replaced, ws.getExistingValue(handle, "old", "Src"));
+			assertNull(th.getPstValue("Src\0old", ObjectWrapper.class));
+			assertTrue(ws.commit(handle));
+
+			assertNull(ws.getValue(handle, "none", "Src"));
+			assertFalse(th.exists("Src\0none", ByteBuffer.class));
+			assertTrue(ws.setValue(handle, "new", "Src", new byte[] { 5 }));
+			assertTrue(ws.commit(handle));
+			tm.shutDown();
+			tm.warmStart();
+			assertArrayEquals(new byte[] { 5 }, ws.getValue(handle, "new", "Src"));
+			assertArrayEquals(replaced, ws.getValue(handle, "old", "Src"));
+			assertTrue(ws.commit(handle));
+
+			// an old-form value moved to the byte form by another handle while it is read
+			th.setPstValue("Src\0moving", ObjectWrapper.class, new ObjectWrapper("Src", old));
+			assertTrue(ws.commit(handle));
+			mover = ws.getTransactionHandle("mover");
+			byte[] moved = { 4 };
+			assertTrue(ws.setValue(mover, "moving", "Src", moved));
+			final String reading = handle;
+			final byte[][] read = new byte[1][];
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						read[0] = ws.getValue(reading, "moving", "Src");
+						ws.commit(reading);
+					} catch (PersistException pe) {
+						System.err.println("read failed: " + pe);
+					}
+				}
+			});
+			reader.start();
+			Thread.sleep(200);
+			assertTrue(ws.commit(mover));
+			reader.join();
+			assertSame(moved, read[0]);
+		} catch (Exception e) {
+			fail("Web service values: " + e);
+		} finally {
+			if (handle != null) {
+				ws.releaseTransactionHandle(handle);
+			}
+			if (mover != null) {
+				ws.releaseTransactionHandle(mover);
+			}
+			tm.shutDown();
+		}
+	}
+}